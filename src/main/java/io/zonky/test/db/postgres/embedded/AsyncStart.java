@@ -0,0 +1,97 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.zonky.test.db.postgres.embedded;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs the startup of a cluster on an executor and exposes it as a {@link CompletableFuture}.
+ *
+ * <p>
+ * Unlike a plain {@link CompletableFuture#supplyAsync supplied} future, cancelling it interrupts the thread running
+ * the startup, which then tears down whatever has been started so far. The interrupt is only delivered while the
+ * startup is running, so the threads of the executor are never left interrupted.
+ */
+final class AsyncStart extends CompletableFuture<EmbeddedPostgres> implements Runnable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AsyncStart.class);
+
+    interface Startup {
+        EmbeddedPostgres start() throws IOException;
+    }
+
+    private final Startup startup;
+    private Thread runner; // @GuardedBy("this")
+
+    private AsyncStart(Startup startup) {
+        this.startup = startup;
+    }
+
+    static CompletableFuture<EmbeddedPostgres> start(Startup startup, Executor executor) {
+        final AsyncStart future = new AsyncStart(startup);
+        executor.execute(future);
+        return future;
+    }
+
+    @Override
+    public void run() {
+        synchronized (this) {
+            if (isDone()) {
+                return;
+            }
+            runner = Thread.currentThread();
+        }
+        EmbeddedPostgres pg = null;
+        Throwable failure = null;
+        try {
+            pg = startup.start();
+        } catch (Throwable e) { // NOPMD - the failure is passed to the future
+            failure = e;
+        } finally {
+            synchronized (this) {
+                runner = null;
+            }
+            // clears an interrupt delivered by a cancellation
+            Thread.interrupted();
+        }
+        if (failure != null) {
+            completeExceptionally(failure);
+        } else if (!complete(pg)) {
+            LOG.info("Startup of {} was cancelled, closing it", pg);
+            try {
+                pg.close();
+            } catch (IOException | RuntimeException e) {
+                LOG.error("Could not close cancelled cluster " + pg, e);
+            }
+        }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        final boolean cancelled = super.cancel(mayInterruptIfRunning);
+        if (cancelled) {
+            synchronized (this) {
+                if (runner != null) {
+                    runner.interrupt();
+                }
+            }
+        }
+        return cancelled;
+    }
+}
@@ -0,0 +1,29 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.zonky.test.db.postgres.embedded;
+
+import java.io.IOException;
+
+/**
+ * A DatabasePreparer whose result can be cached across runs,
+ * see {@link EmbeddedPostgres.Builder#setUsePreparedTemplateCache(boolean)}.
+ */
+public interface CacheableDatabasePreparer extends DatabasePreparer {
+
+    /**
+     * Returns a key that changes whenever the result of the preparation could change, e.g. a hash of the content
+     * of the migrations and the configuration, or {@code null} if it cannot be determined and the result must not be cached.
+     */
+    String getCacheKey() throws IOException;
+}
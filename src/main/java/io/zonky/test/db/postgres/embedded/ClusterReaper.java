@@ -0,0 +1,121 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.zonky.test.db.postgres.embedded;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Finishes the teardown of closed clusters in the background, i.e. waits for their postmasters to exit
+ * and removes their data directories, with a bounded parallelism shared by all clusters.
+ *
+ * <p>
+ * It also replaces the shutdown hooks of individual clusters by a single one, which closes all clusters
+ * that are still running at once and waits until their teardown is drained.
+ */
+final class ClusterReaper {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ClusterReaper.class);
+
+    private static final int REAPER_THREADS = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    private static final long SHUTDOWN_DRAIN_TIMEOUT_S = 30;
+
+    private static final ClusterReaper INSTANCE = new ClusterReaper();
+
+    interface Teardown {
+        void run() throws IOException;
+    }
+
+    private final AtomicInteger threadCounter = new AtomicInteger();
+    private final ExecutorService executor = Executors.newFixedThreadPool(REAPER_THREADS, r -> {
+        final Thread t = new Thread(r);
+        t.setDaemon(true);
+        t.setName("cluster-reaper-" + threadCounter.incrementAndGet());
+        return t;
+    });
+    private final Set<EmbeddedPostgres> running = ConcurrentHashMap.newKeySet();
+    private final Set<CompletableFuture<Void>> pending = ConcurrentHashMap.newKeySet();
+
+    private ClusterReaper() {
+        final Thread hook = new Thread(this::drain);
+        hook.setName("cluster-reaper-shutdown");
+        Runtime.getRuntime().addShutdownHook(hook);
+    }
+
+    static ClusterReaper getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Registers a cluster to be closed when the JVM exits.
+     */
+    void register(EmbeddedPostgres pg) {
+        running.add(pg);
+    }
+
+    void unregister(EmbeddedPostgres pg) {
+        running.remove(pg);
+    }
+
+    /**
+     * Runs the teardown in the background, the returned future completes once it is finished.
+     */
+    CompletableFuture<Void> submit(Teardown teardown) {
+        final CompletableFuture<Void> future = CompletableFuture.runAsync(() -> {
+            try {
+                teardown.run();
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+        pending.add(future);
+        future.whenComplete((result, e) -> pending.remove(future));
+        return future;
+    }
+
+    private void drain() {
+        final List<EmbeddedPostgres> clusters = new ArrayList<>(running);
+        for (EmbeddedPostgres pg : clusters) {
+            pg.closeAsync();
+        }
+        final List<CompletableFuture<Void>> teardowns = new ArrayList<>(pending);
+        if (teardowns.isEmpty()) {
+            return;
+        }
+        LOG.info("Waiting for the teardown of {} embedded postgres clusters", teardowns.size());
+        try {
+            CompletableFuture.allOf(teardowns.toArray(new CompletableFuture<?>[0])).get(SHUTDOWN_DRAIN_TIMEOUT_S, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            LOG.error("Could not tear down embedded postgres cluster", e.getCause());
+        } catch (TimeoutException e) {
+            LOG.warn("Gave up waiting for the teardown of embedded postgres clusters after {}s", SHUTDOWN_DRAIN_TIMEOUT_S);
+        }
+    }
+}
@@ -25,16 +25,22 @@ public class ConnectionInfo {
     private final int port;
     private final String user;
     private final Map<String, String> properties;
+    private final String unixSocketPath;
 
     public ConnectionInfo(final String dbName, final int port, final String user) {
         this(dbName, port, user, emptyMap());
     }
 
     public ConnectionInfo(final String dbName, final int port, final String user, final Map<String, String> properties) {
+        this(dbName, port, user, properties, null);
+    }
+
+    public ConnectionInfo(final String dbName, final int port, final String user, final Map<String, String> properties, final String unixSocketPath) {
         this.dbName = dbName;
         this.port = port;
         this.user = user;
         this.properties = new HashMap<>(properties);
+        this.unixSocketPath = unixSocketPath;
     }
 
     public String getUser() {
@@ -52,4 +58,11 @@ public class ConnectionInfo {
     public Map<String, String> getProperties() {
         return unmodifiableMap(properties);
     }
+
+    /**
+     * Returns the path of the unix domain socket file of the server, or {@code null} if the connections use TCP.
+     */
+    public String getUnixSocketPath() {
+        return unixSocketPath;
+    }
 }
@@ -0,0 +1,45 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.zonky.test.db.postgres.embedded;
+
+/**
+ * The strategy {@link PreparedDbProvider} uses to copy the prepared template into new databases,
+ * see the {@code STRATEGY} option of {@code CREATE DATABASE} introduced in PostgreSQL 15.
+ *
+ * @see EmbeddedPostgres.Builder#setCreateDatabaseStrategy(CreateDatabaseStrategy)
+ */
+public enum CreateDatabaseStrategy {
+
+    /**
+     * The default strategy of the server, {@link #WAL_LOG} since PostgreSQL 15.
+     */
+    DEFAULT,
+
+    /**
+     * The template is copied block by block and the copy is written to the WAL, which is cheap for small templates.
+     */
+    WAL_LOG,
+
+    /**
+     * The template files are copied directly, which requires checkpoints around the copy but is cheaper for large templates.
+     */
+    FILE_COPY,
+
+    /**
+     * Both strategies are measured against the prepared template once the cluster is prepared and the faster one is used.
+     * On servers older than PostgreSQL 15, it falls back to {@link #DEFAULT}.
+     */
+    AUTO
+}
@@ -0,0 +1,34 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.zonky.test.db.postgres.embedded;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * A strategy for duplicating a stopped postgres data directory, e.g. when a new cluster is seeded from a cached one.
+ *
+ * @see DefaultDataDirectoryCloner
+ * @see EmbeddedPostgres.Builder#setDataDirectoryCloner(DataDirectoryCloner)
+ */
+public interface DataDirectoryCloner {
+
+    /**
+     * Copies the content of the source directory into the target directory.
+     * @param source an existing directory to copy from
+     * @param target an existing empty directory to copy to
+     */
+    void cloneDirectory(Path source, Path target) throws IOException;
+}
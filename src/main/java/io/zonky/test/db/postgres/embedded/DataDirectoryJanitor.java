@@ -0,0 +1,187 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.zonky.test.db.postgres.embedded;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Removes data directories left behind by clusters that were not closed, e.g. because their JVM was killed.
+ *
+ * <p>
+ * The scan runs in the background, at most once per interval for each parent directory. Concurrent JVMs coordinate
+ * through a lock file, only one of them scans at a time, and share a state file that remembers when each directory
+ * needs to be probed again. Its modification time records the last completed scan.
+ */
+final class DataDirectoryJanitor {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DataDirectoryJanitor.class);
+
+    private static final String STATE_FILE_NAME = ".epg-janitor";
+    private static final String LOCK_FILE_NAME = ".epg-janitor.lock";
+    private static final long SCAN_INTERVAL_MS = 10 * 60 * 1000;
+    private static final long STALE_DIRECTORY_AGE_MS = 10 * 60 * 1000;
+    // data directories in use and other directories are not probed again for a while
+    private static final long RECHECK_INTERVAL_MS = 60 * 60 * 1000;
+    private static final long REMOVED = -1;
+
+    private static final Map<File, Long> LAST_SCANS = new ConcurrentHashMap<>();
+    private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(r -> {
+        final Thread t = new Thread(r);
+        t.setDaemon(true);
+        t.setName("data-directory-janitor");
+        return t;
+    });
+
+    private DataDirectoryJanitor() {}
+
+    /**
+     * Schedules a scan of the parent directory, unless it has been scanned recently.
+     * The stopper is used to shut down postmasters still running in stale data directories.
+     */
+    static void schedule(File parentDirectory, Consumer<File> postmasterStopper) {
+        final File directory = parentDirectory.getAbsoluteFile();
+        final long now = System.currentTimeMillis();
+        final Long lastScan = LAST_SCANS.get(directory);
+        if (lastScan != null && now - lastScan < SCAN_INTERVAL_MS) {
+            return;
+        }
+        if (lastScan == null ? LAST_SCANS.putIfAbsent(directory, now) == null : LAST_SCANS.replace(directory, lastScan, now)) {
+            EXECUTOR.execute(() -> clean(directory, postmasterStopper));
+        }
+    }
+
+    static void clean(File parentDirectory, Consumer<File> postmasterStopper) {
+        final File stateFile = new File(parentDirectory, STATE_FILE_NAME);
+        try (FileChannel lockChannel = FileChannel.open(new File(parentDirectory, LOCK_FILE_NAME).toPath(), CREATE, WRITE);
+             FileLock lock = lockChannel.tryLock()) {
+            if (lock == null) {
+                LOG.trace("Data directories in {} are being cleaned by another process", parentDirectory);
+                return;
+            }
+            final long now = System.currentTimeMillis();
+            if (stateFile.exists() && now - stateFile.lastModified() < SCAN_INTERVAL_MS) {
+                LOG.trace("Data directories in {} have been cleaned recently", parentDirectory);
+                return;
+            }
+            final Map<String, Long> nextChecks = readState(stateFile);
+            final Map<String, Long> newState = new HashMap<>();
+            final File[] children = parentDirectory.listFiles(File::isDirectory);
+            for (File dir : children != null ? children : new File[0]) {
+                final Long nextCheck = nextChecks.get(dir.getName());
+                final long newNextCheck = nextCheck != null && nextCheck > now ? nextCheck : probe(dir, postmasterStopper, now);
+                if (newNextCheck != REMOVED) {
+                    newState.put(dir.getName(), newNextCheck);
+                }
+            }
+            writeState(stateFile, newState);
+        } catch (OverlappingFileLockException e) {
+            LOG.trace("Data directories in {} are being cleaned by this process", parentDirectory);
+        } catch (IOException e) {
+            LOG.warn("While cleaning old data directories in {}", parentDirectory, e);
+        }
+    }
+
+    /**
+     * Removes the directory if it is a stale data directory and returns when it needs to be probed again.
+     */
+    private static long probe(File dir, Consumer<File> postmasterStopper, long now) {
+        final File lockFile = new File(dir, EmbeddedPostgres.LOCK_FILE_NAME);
+        if (!lockFile.exists()) {
+            // not a data directory, or one that is still being initialized
+            return now + RECHECK_INTERVAL_MS;
+        }
+        final long lastModified = lockFile.lastModified();
+        if (now - lastModified < STALE_DIRECTORY_AGE_MS) {
+            return lastModified + STALE_DIRECTORY_AGE_MS;
+        }
+        try (FileChannel channel = FileChannel.open(lockFile.toPath(), WRITE);
+             FileLock lock = channel.tryLock()) {
+            if (lock == null) {
+                return now + RECHECK_INTERVAL_MS;
+            }
+            LOG.info("Found stale data directory {}", dir);
+            if (new File(dir, "postmaster.pid").exists()) {
+                try {
+                    postmasterStopper.accept(dir);
+                    LOG.info("Shut down orphaned postmaster!");
+                } catch (RuntimeException e) {
+                    if (LOG.isDebugEnabled()) {
+                        LOG.warn("Failed to stop postmaster " + dir, e);
+                    } else {
+                        LOG.warn("Failed to stop postmaster " + dir + ": " + e.getMessage());
+                    }
+                }
+            }
+            FileUtils.deleteDirectory(dir);
+            return REMOVED;
+        } catch (final OverlappingFileLockException e) {
+            // The directory belongs to another instance in this VM.
+            LOG.trace("While cleaning old data directories", e);
+            return now + RECHECK_INTERVAL_MS;
+        } catch (final IOException e) {
+            LOG.warn("While cleaning old data directories", e);
+            return now + RECHECK_INTERVAL_MS;
+        }
+    }
+
+    private static Map<String, Long> readState(File stateFile) {
+        final Map<String, Long> nextChecks = new HashMap<>();
+        if (!stateFile.exists()) {
+            return nextChecks;
+        }
+        try {
+            for (String line : Files.readAllLines(stateFile.toPath(), UTF_8)) {
+                final String[] entry = line.split(" ", 2);
+                if (entry.length == 2) {
+                    nextChecks.put(entry[1], Long.parseLong(entry[0]));
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            LOG.debug("Ignoring corrupted janitor state {}", stateFile, e);
+            nextChecks.clear();
+        }
+        return nextChecks;
+    }
+
+    private static void writeState(File stateFile, Map<String, Long> nextChecks) throws IOException {
+        final List<String> lines = new ArrayList<>(nextChecks.size());
+        nextChecks.forEach((name, nextCheck) -> lines.add(nextCheck + " " + name));
+        final Path tempFile = new File(stateFile.getParentFile(), STATE_FILE_NAME + ".tmp").toPath();
+        Files.write(tempFile, lines, UTF_8);
+        Files.move(tempFile, stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
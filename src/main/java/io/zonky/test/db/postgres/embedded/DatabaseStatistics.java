@@ -0,0 +1,157 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.zonky.test.db.postgres.embedded;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Detects whether a database has been modified, see {@link ReleaseStrategy#REUSE_UNMODIFIED}.
+ *
+ * <p>
+ * The tuple counters of {@code pg_stat_database} cover the writes into the system catalogs as well,
+ * so any change of the schema is detected together with the changes of the data. The transaction counters
+ * are not used, as they grow with read-only transactions too. The counters are only complete once
+ * the backends connected to the database have exited, so these are terminated first. Before PostgreSQL 15,
+ * the statistics are collected asynchronously, so the check also waits for a snapshot taken after that.
+ * Sequences advanced by {@code nextval} are not counted, so their values are compared separately.
+ */
+final class DatabaseStatistics {
+
+    private static final int TERMINATE_TIMEOUT_MIN_VERSION = 140000;
+    private static final int SHARED_MEMORY_STATISTICS_MIN_VERSION = 150000;
+    private static final int SEQUENCES_VIEW_MIN_VERSION = 100000;
+    private static final long TIMEOUT_MS = 5000;
+    private static final long POLL_INTERVAL_MS = 20;
+
+    private DatabaseStatistics() {}
+
+    /**
+     * Returns whether the server counts the modifications at all, they are not counted with {@code track_counts} disabled.
+     */
+    static boolean isTrackingEnabled(EmbeddedPostgres pg) throws SQLException {
+        try (Connection c = pg.getPostgresDatabase().getConnection();
+             Statement stmt = c.createStatement();
+             ResultSet rs = stmt.executeQuery("SHOW track_counts")) {
+            return rs.next() && "on".equals(rs.getString(1));
+        }
+    }
+
+    /**
+     * Terminates the connections to the databases and returns the number of tuples inserted, updated or deleted
+     * in each of them so far. The numbers only grow, unless the statistics are reset.
+     * The databases are checked together, so that the statistics are awaited only once.
+     */
+    static Map<String, Long> getModificationCounts(EmbeddedPostgres pg, List<String> dbNames) throws SQLException {
+        final int serverVersion = pg.getServerVersionNum();
+        try (Connection c = pg.getPostgresDatabase().getConnection()) {
+            final Timestamp terminated = terminateConnections(c, dbNames, serverVersion);
+            if (serverVersion < SHARED_MEMORY_STATISTICS_MIN_VERSION) {
+                awaitSnapshot(c, terminated);
+            }
+            final Map<String, Long> counts = new HashMap<>();
+            try (PreparedStatement stmt = c.prepareStatement("SELECT datname, tup_inserted + tup_updated + tup_deleted FROM pg_stat_database WHERE datname = ANY (?)")) {
+                stmt.setArray(1, c.createArrayOf("text", dbNames.toArray()));
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        counts.put(rs.getString(1), rs.getLong(2));
+                    }
+                }
+            }
+            return counts;
+        }
+    }
+
+    /**
+     * Returns the last values of all sequences in the database, an empty string if there are none. Before PostgreSQL 10,
+     * the values cannot be read in a single query, so null is returned if there are any sequences.
+     */
+    static String getSequenceValues(EmbeddedPostgres pg, String dbName) throws SQLException {
+        final boolean readable = pg.getServerVersionNum() >= SEQUENCES_VIEW_MIN_VERSION;
+        try (Connection c = pg.getDatabase("postgres", dbName).getConnection();
+             Statement stmt = c.createStatement();
+             ResultSet rs = stmt.executeQuery(readable
+                     ? "SELECT string_agg(format('%I.%I=%s', schemaname, sequencename, last_value), ',' ORDER BY schemaname, sequencename) FROM pg_sequences"
+                     : "SELECT CASE WHEN count(*) = 0 THEN '' END FROM pg_class WHERE relkind = 'S'")) {
+            if (!rs.next()) {
+                throw new SQLException("Could not read the sequences of database " + dbName);
+            }
+            final String values = rs.getString(1);
+            // string_agg returns null if there are no sequences
+            return values == null && readable ? "" : values;
+        }
+    }
+
+    /**
+     * Terminates the backends and waits until they have exited, i.e. reported their statistics.
+     * Older servers cannot wait, so the backends are signalled until they are gone.
+     */
+    private static Timestamp terminateConnections(Connection c, List<String> dbNames, int serverVersion) throws SQLException {
+        final boolean wait = serverVersion >= TERMINATE_TIMEOUT_MIN_VERSION;
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS);
+        try (PreparedStatement stmt = c.prepareStatement(wait
+                ? "SELECT bool_and(pg_terminate_backend(pid, " + TIMEOUT_MS + ")), clock_timestamp() FROM pg_stat_activity WHERE datname = ANY (?)"
+                : "SELECT bool_or(pg_terminate_backend(pid)), clock_timestamp() FROM pg_stat_activity WHERE datname = ANY (?)")) {
+            stmt.setArray(1, c.createArrayOf("text", dbNames.toArray()));
+            while (true) {
+                try (ResultSet rs = stmt.executeQuery()) {
+                    if (!rs.next()) {
+                        throw new SQLException("Could not terminate the connections to databases " + dbNames);
+                    }
+                    // null if there are no connections left
+                    final Boolean signalled = (Boolean) rs.getObject(1);
+                    if (signalled == null || wait && signalled) {
+                        return rs.getTimestamp(2);
+                    }
+                }
+                sleep(deadline, "The connections to databases " + dbNames + " have not been terminated in time");
+            }
+        }
+    }
+
+    private static void awaitSnapshot(Connection c, Timestamp since) throws SQLException {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS);
+        try (PreparedStatement stmt = c.prepareStatement("SELECT pg_stat_get_snapshot_timestamp() > ?")) {
+            stmt.setTimestamp(1, since);
+            while (true) {
+                try (ResultSet rs = stmt.executeQuery()) {
+                    if (rs.next() && rs.getBoolean(1)) {
+                        return;
+                    }
+                }
+                sleep(deadline, "The statistics have not been updated in time");
+            }
+        }
+    }
+
+    private static void sleep(long deadline, String timeoutMessage) throws SQLException {
+        if (System.nanoTime() > deadline) {
+            throw new SQLException(timeoutMessage);
+        }
+        try {
+            Thread.sleep(POLL_INTERVAL_MS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while checking the statistics", e);
+        }
+    }
+}
@@ -0,0 +1,296 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.zonky.test.db.postgres.embedded;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.SystemUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileStore;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Clones data directories using copy-on-write reflinks where the file system supports them (XFS, btrfs, APFS...),
+ * which makes the copy nearly instant regardless of the size of the directory. The support is detected at runtime
+ * by cloning a probe file, once per pair of file stores.
+ *
+ * <p>
+ * Otherwise, the files are copied in parallel, large files in multiple chunks, using {@link FileChannel#transferTo},
+ * which lets the kernel copy the data without passing it through the java heap.
+ */
+public final class DefaultDataDirectoryCloner implements DataDirectoryCloner {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DefaultDataDirectoryCloner.class);
+
+    private static final long CHUNK_SIZE = 8L * 1024 * 1024;
+    private static final int SMALL_FILES_BATCH = 64;
+    private static final int COPY_THREADS = Math.max(1, Math.min(8, Runtime.getRuntime().availableProcessors()));
+
+    public static final DefaultDataDirectoryCloner INSTANCE = new DefaultDataDirectoryCloner();
+
+    private final Map<List<FileStore>, Boolean> reflinkSupport = new ConcurrentHashMap<>();
+    private volatile ExecutorService copyExecutor;
+
+    private DefaultDataDirectoryCloner() {}
+
+    @Override
+    public void cloneDirectory(Path source, Path target) throws IOException {
+        if (isReflinkSupported(source, target) && reflink(source, target)) {
+            return;
+        }
+        parallelCopy(source, target);
+    }
+
+    private boolean isReflinkSupported(Path source, Path target) throws IOException {
+        if (!SystemUtils.IS_OS_LINUX && !SystemUtils.IS_OS_MAC_OSX) {
+            return false;
+        }
+        final List<FileStore> fileStores = Arrays.asList(Files.getFileStore(source), Files.getFileStore(target));
+        return reflinkSupport.computeIfAbsent(fileStores, key -> probeReflink(source, target));
+    }
+
+    private static boolean probeReflink(Path source, Path target) {
+        Path probe = null;
+        Path probeClone = null;
+        try {
+            probe = Files.createTempFile(source.toAbsolutePath().getParent(), "reflink-probe", ".tmp");
+            Files.write(probe, new byte[] {1});
+            probeClone = target.resolve(probe.getFileName());
+            final boolean supported = cloneWithCp(probe, probeClone);
+            LOG.debug("Reflink copies {} supported from {} to {}", supported ? "are" : "are not", source, target);
+            return supported;
+        } catch (IOException e) {
+            LOG.debug("Could not probe reflink support", e);
+            return false;
+        } finally {
+            deleteQuietly(probe);
+            deleteQuietly(probeClone);
+        }
+    }
+
+    private static boolean reflink(Path source, Path target) throws IOException {
+        if (cloneWithCp(source, target)) {
+            return true;
+        }
+        LOG.warn("Reflink copy of {} failed, falling back to a regular copy", source);
+        final File[] children = target.toFile().listFiles();
+        if (children != null) {
+            for (File child : children) {
+                FileUtils.forceDelete(child);
+            }
+        }
+        return false;
+    }
+
+    private static boolean cloneWithCp(Path source, Path target) throws IOException {
+        final List<String> command;
+        if (Files.isDirectory(source)) {
+            // copies the content of the source directory, not the directory itself
+            command = SystemUtils.IS_OS_MAC_OSX
+                    ? Arrays.asList("cp", "-c", "-R", "-p", source + "/", target.toString())
+                    : Arrays.asList("cp", "-R", "--preserve=mode,timestamps", "--reflink=always", source + "/.", target.toString());
+        } else {
+            command = SystemUtils.IS_OS_MAC_OSX
+                    ? Arrays.asList("cp", "-c", "-p", source.toString(), target.toString())
+                    : Arrays.asList("cp", "--preserve=mode,timestamps", "--reflink=always", source.toString(), target.toString());
+        }
+        final Process process = new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.to(new File("/dev/null")))
+                .start();
+        try {
+            return process.waitFor() == 0;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            process.destroyForcibly();
+            throw new InterruptedIOException("Interrupted while cloning " + source);
+        }
+    }
+
+    private void parallelCopy(Path source, Path target) throws IOException {
+        final List<Callable<Void>> copies = new ArrayList<>();
+        final List<Path> smallFiles = new ArrayList<>();
+
+        Files.walkFileTree(source, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                final Path targetDir = target.resolve(source.relativize(dir).toString());
+                if (!Files.isDirectory(targetDir)) {
+                    Files.createDirectory(targetDir);
+                }
+                copyPermissions(dir, targetDir);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                final Path targetFile = target.resolve(source.relativize(file).toString());
+                if (attrs.isSymbolicLink()) {
+                    Files.createSymbolicLink(targetFile, Files.readSymbolicLink(file));
+                } else if (attrs.size() <= CHUNK_SIZE) {
+                    // most of the files are small, copying them in batches keeps the scheduling overhead low
+                    smallFiles.add(file);
+                    if (smallFiles.size() == SMALL_FILES_BATCH) {
+                        copies.add(copyBatch(source, target, smallFiles));
+                        smallFiles.clear();
+                    }
+                } else {
+                    Files.createFile(targetFile);
+                    copyPermissions(file, targetFile);
+                    for (long offset = 0; offset < attrs.size(); offset += CHUNK_SIZE) {
+                        final long position = offset;
+                        final long length = Math.min(CHUNK_SIZE, attrs.size() - offset);
+                        copies.add(() -> {
+                            copyChunk(file, targetFile, position, length);
+                            return null;
+                        });
+                    }
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        if (!smallFiles.isEmpty()) {
+            copies.add(copyBatch(source, target, smallFiles));
+        }
+
+        if (COPY_THREADS == 1) {
+            // handing the work over to another thread only adds overhead without a second processor
+            for (Callable<Void> copy : copies) {
+                callCopy(copy);
+            }
+            return;
+        }
+        final ExecutorService executor = getCopyExecutor();
+        final List<Future<Void>> futures = new ArrayList<>();
+        for (Callable<Void> copy : copies) {
+            futures.add(executor.submit(copy));
+        }
+        awaitCopies(futures);
+    }
+
+    private static Callable<Void> copyBatch(Path source, Path target, List<Path> files) {
+        final List<Path> batch = new ArrayList<>(files);
+        return () -> {
+            for (Path file : batch) {
+                Files.copy(file, target.resolve(source.relativize(file).toString()), StandardCopyOption.COPY_ATTRIBUTES);
+            }
+            return null;
+        };
+    }
+
+    private static void callCopy(Callable<Void> copy) throws IOException {
+        try {
+            copy.call();
+        } catch (IOException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Could not copy data directory", e);
+        }
+    }
+
+    private static void copyChunk(Path source, Path target, long position, long length) throws IOException {
+        try (FileChannel in = FileChannel.open(source, READ);
+             FileChannel out = FileChannel.open(target, WRITE)) {
+            out.position(position);
+            long transferred = 0;
+            while (transferred < length) {
+                final long count = in.transferTo(position + transferred, length - transferred, out);
+                if (count <= 0) {
+                    throw new IOException("Unexpected end of file " + source);
+                }
+                transferred += count;
+            }
+        }
+    }
+
+    private static void awaitCopies(List<Future<Void>> copies) throws IOException {
+        try {
+            for (Future<?> copy : copies) {
+                copy.get();
+            }
+        } catch (InterruptedException e) {
+            copies.forEach(copy -> copy.cancel(true));
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while copying data directory");
+        } catch (ExecutionException e) {
+            copies.forEach(copy -> copy.cancel(true));
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Could not copy data directory", e.getCause());
+        }
+    }
+
+    private static void copyPermissions(Path source, Path target) throws IOException {
+        if (!SystemUtils.IS_OS_WINDOWS) {
+            Files.setPosixFilePermissions(target, Files.getPosixFilePermissions(source));
+        }
+    }
+
+    private static void deleteQuietly(Path path) {
+        if (path != null) {
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                LOG.trace("Could not delete {}", path, e);
+            }
+        }
+    }
+
+    private ExecutorService getCopyExecutor() {
+        if (copyExecutor == null) {
+            synchronized (this) {
+                if (copyExecutor == null) {
+                    final AtomicInteger threadCounter = new AtomicInteger();
+                    copyExecutor = Executors.newFixedThreadPool(COPY_THREADS, r -> {
+                        final Thread t = new Thread(r);
+                        t.setDaemon(true);
+                        t.setName("data-directory-copier-" + threadCounter.incrementAndGet());
+                        return t;
+                    });
+                }
+            }
+        }
+        return copyExecutor;
+    }
+
+    @Override
+    public String toString() {
+        return "DefaultDataDirectoryCloner";
+    }
+}
@@ -15,19 +15,24 @@ package io.zonky.test.db.postgres.embedded;
 
 import io.zonky.test.db.postgres.util.ArchUtils;
 import io.zonky.test.db.postgres.util.LinuxUtils;
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
+import java.net.JarURLConnection;
 import java.net.URL;
 import java.net.URLConnection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static java.lang.String.format;
 import static org.apache.commons.lang3.StringUtils.lowerCase;
@@ -38,10 +43,32 @@ public class DefaultPostgresBinaryResolver implements PgBinaryResolver {
 
     public static final DefaultPostgresBinaryResolver INSTANCE = new DefaultPostgresBinaryResolver();
 
+    // the cache key and the binary are resolved one after the other, the lookup is done only once
+    private final Map<String, Resource> resolvedResources = new ConcurrentHashMap<>();
+
     private DefaultPostgresBinaryResolver() {}
 
     @Override
     public InputStream getPgBinary(String system, String machineHardware) throws IOException {
+        return resolvePgBinary(system, machineHardware).getInputStream();
+    }
+
+    @Override
+    public String getPgBinaryCacheKey(String system, String machineHardware) throws IOException {
+        return resolvePgBinary(system, machineHardware).getCacheKey();
+    }
+
+    private Resource resolvePgBinary(String system, String machineHardware) throws IOException {
+        String key = system + "-" + machineHardware;
+        Resource resource = resolvedResources.get(key);
+        if (resource == null) {
+            resource = lookupPgBinary(system, machineHardware);
+            resolvedResources.put(key, resource);
+        }
+        return resource;
+    }
+
+    private static Resource lookupPgBinary(String system, String machineHardware) throws IOException {
         String architecture = ArchUtils.normalize(machineHardware);
         String distribution = LinuxUtils.getDistributionName();
 
@@ -51,7 +78,7 @@ public class DefaultPostgresBinaryResolver implements PgBinaryResolver {
             Resource resource = findPgBinary(normalize(format("postgres-%s-%s-%s.txz", system, architecture, distribution)));
             if (resource != null) {
                 logger.info("Distribution specific postgres binaries found: '{}'", resource.getFilename());
-                return resource.getInputStream();
+                return resource;
             } else {
                 logger.debug("Distribution specific postgres binaries not found");
             }
@@ -60,7 +87,7 @@ public class DefaultPostgresBinaryResolver implements PgBinaryResolver {
         Resource resource = findPgBinary(normalize(format("postgres-%s-%s.txz", system, architecture)));
         if (resource != null) {
             logger.info("System specific postgres binaries found: '{}'", resource.getFilename());
-            return resource.getInputStream();
+            return resource;
         }
 
         if ((StringUtils.equals(system, "Darwin") && StringUtils.equals(machineHardware, "aarch64"))        // NOPMD
@@ -71,7 +98,7 @@ public class DefaultPostgresBinaryResolver implements PgBinaryResolver {
                         "Trying to use binaries for x64 architecture instead: '{}'. " +
                         "Make sure you have enabled emulation for this purpose. " +
                         "Note that performance may be degraded.", resource.getFilename());
-                return resource.getInputStream();
+                return resource;
             }
         }
 
@@ -116,6 +143,19 @@ public class DefaultPostgresBinaryResolver implements PgBinaryResolver {
             return FilenameUtils.getName(url.getPath());
         }
 
+        public String getCacheKey() throws IOException {
+            URL fileUrl = url;
+            URLConnection con = url.openConnection();
+            if (con instanceof JarURLConnection) {
+                fileUrl = ((JarURLConnection) con).getJarFileURL();
+            }
+            File file = FileUtils.toFile(fileUrl);
+            if (file == null || !file.isFile()) {
+                return null;
+            }
+            return format("%s|%d|%d", url, file.length(), file.lastModified());
+        }
+
         public InputStream getInputStream() throws IOException {
             URLConnection con = this.url.openConnection();
             try {
@@ -15,38 +15,40 @@ package io.zonky.test.db.postgres.embedded;
 
 import io.zonky.test.db.postgres.util.LinuxUtils;
 import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
-import org.apache.commons.io.output.ByteArrayOutputStream;
 import org.apache.commons.lang3.SystemUtils;
 import org.apache.commons.lang3.time.StopWatch;
 import org.postgresql.ds.PGSimpleDataSource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.tukaani.xz.XZInputStream;
 
 import javax.sql.DataSource;
-import java.io.ByteArrayInputStream;
+import java.io.BufferedReader;
 import java.io.Closeable;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.InetAddress;
-import java.net.InetSocketAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.AsynchronousFileChannel;
 import java.nio.channels.Channel;
 import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
-import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileStore;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
 import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -57,6 +59,7 @@ import java.sql.Statement;
 import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -65,13 +68,18 @@ import java.util.Map.Entry;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Phaser;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Consumer;
+import java.util.regex.Pattern;
 import java.util.stream.Stream;
 
 import static java.nio.file.StandardOpenOption.CREATE;
@@ -88,16 +96,31 @@ public class EmbeddedPostgres implements Closeable
     private static final String PG_STOP_WAIT_S = "5";
     private static final String PG_SUPERUSER = "postgres";
     private static final Duration DEFAULT_PG_STARTUP_WAIT = Duration.ofSeconds(10);
-    private static final String LOCK_FILE_NAME = "epg-lock";
+    static final String LOCK_FILE_NAME = "epg-lock";
+    private static final long STARTUP_POLL_INTERVAL_MS = 2;
+    private static final long STOP_POLL_INTERVAL_MS = 5;
+    private static final long FALLBACK_PROBE_INTERVAL_NS = TimeUnit.MILLISECONDS.toNanos(50);
+    private static final int READINESS_PROBE_TIMEOUT_MS = 500;
+    private static final long PROCESS_OUTPUT_WAIT_MS = 1000;
+    private static final int MAX_PORT_ATTEMPTS = 5;
+    private static final Pattern SOCKET_DIRECTORY_PATTERN = Pattern.compile("[\\w./-]+");
+    // an empty cluster takes about 40MB, the rest leaves room for WAL segments and test data
+    private static final long MEMORY_STORAGE_REQUIRED_SPACE = 256L * 1024 * 1024;
+    private static final String INITDB_CACHE_PREFIX = "initdb-";
+    private static final String INITDB_CACHE_STAGING_SUFFIX = ".tmp-";
+    private static final long INITDB_CACHE_UNUSED_TTL_MS = TimeUnit.DAYS.toMillis(7);
 
     private final File pgDir;
+    private final File workingDirectory;
 
     private final Duration pgStartupWait;
     private final File dataDirectory, lockFile;
     private final UUID instanceId = UUID.randomUUID();
-    private final int port;
+    private volatile int port;
+    private volatile PortAllocator.Reservation portReservation;
     private final AtomicBoolean started = new AtomicBoolean();
     private final AtomicBoolean closed = new AtomicBoolean();
+    private final CompletableFuture<Void> closeFuture = new CompletableFuture<>();
 
     private final Map<String, String> postgresConfig;
     private final Map<String, String> localeConfig;
@@ -107,32 +130,50 @@ public class EmbeddedPostgres implements Closeable
     private volatile FileLock lock;
     private final boolean cleanDataDirectory;
     private final boolean registerShutdownHook;
+    private final boolean useInitDbCache;
+    private final File seedDataDirectory;
+    private final boolean initDbNoSync;
+    private final boolean directLaunch;
+    private volatile String unixSocketPath;
+    private final DataDirectoryCloner dataDirectoryCloner;
 
     private final ProcessBuilder.Redirect errorRedirector;
     private final ProcessBuilder.Redirect outputRedirector;
-    private final Process process;
+    private volatile Process process;
+    private volatile int serverVersionNum;
 
     EmbeddedPostgres(File parentDirectory, File dataDirectory, boolean cleanDataDirectory, boolean registerShutdownHook,
         Map<String, String> postgresConfig, Map<String, String> localeConfig, int port, Map<String, String> connectConfig,
         PgBinaryResolver pgBinaryResolver, ProcessBuilder.Redirect errorRedirector, ProcessBuilder.Redirect outputRedirector) throws IOException
     {
         this(parentDirectory, dataDirectory, cleanDataDirectory, registerShutdownHook, postgresConfig, localeConfig, port, connectConfig,
-                pgBinaryResolver, errorRedirector, outputRedirector, DEFAULT_PG_STARTUP_WAIT, null, null);
+                pgBinaryResolver, null, errorRedirector, outputRedirector, DEFAULT_PG_STARTUP_WAIT, null, null, true,
+                DefaultDataDirectoryCloner.INSTANCE, false, false, true, null);
     }
 
     EmbeddedPostgres(File parentDirectory, File dataDirectory, boolean cleanDataDirectory, boolean registerShutdownHook,
                      Map<String, String> postgresConfig, Map<String, String> localeConfig, int port, Map<String, String> connectConfig,
-                     PgBinaryResolver pgBinaryResolver, ProcessBuilder.Redirect errorRedirector,
+                     PgBinaryResolver pgBinaryResolver, PgDirectoryResolver pgDirectoryResolver, ProcessBuilder.Redirect errorRedirector,
                      ProcessBuilder.Redirect outputRedirector, Duration pgStartupWait,
-                     File overrideWorkingDirectory, Consumer<File> dataDirectoryCustomizer) throws IOException
+                     File overrideWorkingDirectory, Consumer<File> dataDirectoryCustomizer, boolean useInitDbCache,
+                     DataDirectoryCloner dataDirectoryCloner, boolean initDbNoSync, boolean directLaunch,
+                     boolean useUnixSocket, File seedDataDirectory) throws IOException
     {
         this.cleanDataDirectory = cleanDataDirectory;
         this.registerShutdownHook = registerShutdownHook;
+        this.useInitDbCache = useInitDbCache;
+        this.seedDataDirectory = seedDataDirectory;
+        this.initDbNoSync = initDbNoSync;
+        if (directLaunch && SystemUtils.IS_OS_WINDOWS) {
+            LOG.warn("Direct launch of postgres is not supported on Windows, pg_ctl will be used instead");
+        }
+        this.directLaunch = directLaunch && !SystemUtils.IS_OS_WINDOWS;
+        this.dataDirectoryCloner = Objects.requireNonNull(dataDirectoryCloner);
+        this.workingDirectory = Optional.ofNullable(overrideWorkingDirectory).orElse(getWorkingDirectory());
         this.postgresConfig = new HashMap<>(postgresConfig);
         this.localeConfig = new HashMap<>(localeConfig);
         this.connectConfig = new HashMap<>(connectConfig);
-        this.port = port;
-        this.pgDir = prepareBinaries(pgBinaryResolver, overrideWorkingDirectory);
+        this.pgDir = resolvePgDir(pgDirectoryResolver, pgBinaryResolver, overrideWorkingDirectory);
         this.errorRedirector = errorRedirector;
         this.outputRedirector = outputRedirector;
         this.pgStartupWait = pgStartupWait;
@@ -140,7 +181,7 @@ public class EmbeddedPostgres implements Closeable
 
         if (parentDirectory != null) {
             mkdirs(parentDirectory);
-            cleanOldDataDirectories(parentDirectory);
+            DataDirectoryJanitor.schedule(parentDirectory, dir -> pgCtl(dir, "stop"));
             if (dataDirectory != null) {
                 this.dataDirectory = dataDirectory;
             } else {
@@ -153,21 +194,59 @@ public class EmbeddedPostgres implements Closeable
             throw new IllegalArgumentException("no data directory");
         }
         LOG.trace("{} postgres data directory is {}", instanceId, this.dataDirectory);
+        final String[] initialContent = this.dataDirectory.list();
+        final boolean createdDataDirectory = initialContent == null || initialContent.length == 0;
         mkdirs(this.dataDirectory);
 
         lockFile = new File(this.dataDirectory, LOCK_FILE_NAME);
 
-        if (cleanDataDirectory || !new File(dataDirectory, "postgresql.conf").exists()) {
-            initdb();
-        }
+        try {
+            if (cleanDataDirectory || !new File(this.dataDirectory, "postgresql.conf").exists()) {
+                initDataDirectory();
+            }
+
+            lock();
 
-        lock();
+            if (dataDirectoryCustomizer != null) {
+                dataDirectoryCustomizer.accept(this.dataDirectory);
+            }
+
+            if (this.registerShutdownHook) {
+                ClusterReaper.getInstance().register(this);
+            }
 
-        if (dataDirectoryCustomizer != null) {
-            dataDirectoryCustomizer.accept(dataDirectory);
+            if (port == 0) {
+                startPostmasterOnAllocatedPort(useUnixSocket);
+            } else {
+                startPostmaster(port, useUnixSocket);
+            }
+        } catch (IOException | RuntimeException e) {
+            abortStartup(e, createdDataDirectory);
+            throw e;
         }
+    }
 
-        this.process = startPostmaster();
+    /**
+     * Tears down a partially started cluster, e.g. after a failure or when the startup was interrupted.
+     * The data directory is only removed if it was locked or created by this instance.
+     */
+    private void abortStartup(Exception cause, boolean createdDataDirectory)
+    {
+        // the cleanup waits for processes, which would fail immediately if the thread stayed interrupted
+        final boolean interrupted = Thread.interrupted();
+        try {
+            if (lock != null) {
+                close();
+            } else if (createdDataDirectory && cleanDataDirectory) {
+                FileUtils.deleteDirectory(dataDirectory);
+            }
+        } catch (IOException | RuntimeException e) {
+            cause.addSuppressed(e);
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
     }
 
     public Process getProcess() {
@@ -204,6 +283,9 @@ public class EmbeddedPostgres implements Closeable
         ds.setPortNumber(port);
         ds.setDatabaseName(dbName);
         ds.setUser(userName);
+        if (unixSocketPath != null) {
+            UnixDomainSocketFactory.configure(ds, unixSocketPath);
+        }
 
         properties.forEach((propertyKey, propertyValue) -> {
             try {
@@ -225,22 +307,35 @@ public class EmbeddedPostgres implements Closeable
         return port;
     }
 
+    /**
+     * Returns the path of the unix domain socket file used by connections, or {@code null} if they use TCP.
+     */
+    String getUnixSocketPath()
+    {
+        return unixSocketPath;
+    }
+
     Map<String, String> getConnectConfig()
     {
         return unmodifiableMap(connectConfig);
     }
 
-    private static int detectPort() throws IOException
+    /**
+     * Returns the version of the running server in the {@code server_version_num} format, e.g. {@code 150004}.
+     */
+    int getServerVersionNum() throws SQLException
     {
-        try (ServerSocket socket = new ServerSocket(0)) {
-            while (!socket.isBound()) {
-                Thread.sleep(50);
+        int version = serverVersionNum;
+        if (version == 0) {
+            try (Connection c = getPostgresDatabase().getConnection();
+                 Statement stmt = c.createStatement();
+                 ResultSet rs = stmt.executeQuery("SHOW server_version_num")) {
+                rs.next();
+                version = Integer.parseInt(rs.getString(1));
             }
-            return socket.getLocalPort();
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            throw new IOException("Thread interrupted", e);
+            serverVersionNum = version;
         }
+        return version;
     }
 
     private void lock() throws IOException
@@ -251,54 +346,194 @@ public class EmbeddedPostgres implements Closeable
         }
     }
 
-    private void initdb()
+    /**
+     * Initializes the data directory. Unless disabled, initdb runs only once per machine for the same binaries and
+     * options, the resulting cluster is cached in the working directory and copied into each new data directory.
+     * The modification time of a cached cluster records its last use, those not used for a week are removed.
+     * A seed data directory, e.g. a cached prepared template, is copied instead of the result of initdb.
+     */
+    private void initDataDirectory() throws IOException
+    {
+        final String[] dataDirectoryContent = dataDirectory.list();
+        if ((!useInitDbCache && seedDataDirectory == null) || dataDirectoryContent == null || dataDirectoryContent.length > 0) {
+            initdb(dataDirectory);
+            return;
+        }
+
+        final StopWatch watch = new StopWatch();
+        watch.start();
+        final File cachedDirectory = seedDataDirectory != null ? seedDataDirectory : prepareInitDbCache();
+        dataDirectoryCloner.cloneDirectory(cachedDirectory.toPath(), dataDirectory.toPath());
+        if (!SystemUtils.IS_OS_WINDOWS) {
+            // postgres refuses to start if the data directory is accessible by others
+            Files.setPosixFilePermissions(dataDirectory.toPath(), PosixFilePermissions.fromString("rwx------"));
+        }
+        LOG.info("{} data directory initialized from {} in {}", instanceId, cachedDirectory, watch);
+    }
+
+    private File prepareInitDbCache() throws IOException
+    {
+        final File cachedDirectory = new File(workingDirectory, INITDB_CACHE_PREFIX + getInitDbCacheKey());
+        if (cachedDirectory.isDirectory()) {
+            cachedDirectory.setLastModified(System.currentTimeMillis());
+            return cachedDirectory;
+        }
+
+        mkdirs(workingDirectory);
+        INITDB_CACHE_LOCK.lock();
+        try (FileChannel lockChannel = FileChannel.open(new File(workingDirectory, cachedDirectory.getName() + ".lock").toPath(), CREATE, WRITE);
+             FileLock ignored = lockChannel.lock()) {
+            if (!cachedDirectory.isDirectory()) {
+                // initdb runs in a staging directory, so an interrupted run never leaves an incomplete cache behind
+                final File stagingDirectory = new File(workingDirectory, cachedDirectory.getName() + INITDB_CACHE_STAGING_SUFFIX + instanceId);
+                try {
+                    initdb(stagingDirectory);
+                    Files.move(stagingDirectory.toPath(), cachedDirectory.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                } finally {
+                    FileUtils.deleteQuietly(stagingDirectory);
+                }
+                removeUnusedInitDbCaches(workingDirectory);
+            }
+        } finally {
+            INITDB_CACHE_LOCK.unlock();
+        }
+        return cachedDirectory;
+    }
+
+    private static void removeUnusedInitDbCaches(File workingDirectory)
+    {
+        final long now = System.currentTimeMillis();
+        final File[] entries = workingDirectory.listFiles(file -> file.isDirectory()
+                && file.getName().startsWith(INITDB_CACHE_PREFIX) && !file.getName().contains(INITDB_CACHE_STAGING_SUFFIX));
+        for (File entry : entries != null ? entries : new File[0]) {
+            if (now - entry.lastModified() > INITDB_CACHE_UNUSED_TTL_MS) {
+                LOG.info("Removing unused initdb cache {}", entry);
+                FileUtils.deleteQuietly(entry);
+            }
+        }
+    }
+
+    /**
+     * The key covers everything that affects the result of initdb: the binaries, the options passed to initdb
+     * and the locale environment it falls back to when no locale options are set.
+     */
+    private String getInitDbCacheKey()
+    {
+        return getInitDbCacheKey(pgDir, createInitDbOptions());
+    }
+
+    private static String getInitDbCacheKey(File pgDir, List<String> initDbOptions)
+    {
+        final File postgres = new File(pgDir, "bin/postgres" + (SystemUtils.IS_OS_WINDOWS ? ".exe" : ""));
+        final List<String> keyParts = new ArrayList<>(Arrays.asList(
+                pgDir.getAbsolutePath(), String.valueOf(postgres.length()), String.valueOf(postgres.lastModified())));
+        keyParts.addAll(initDbOptions);
+        for (String variable : Arrays.asList("LC_ALL", "LC_COLLATE", "LC_CTYPE", "LC_MESSAGES", "LANG", "TZ")) {
+            keyParts.add(variable + "=" + System.getenv(variable));
+        }
+        return DigestUtils.md5Hex(String.join("|", keyParts));
+    }
+
+    private void initdb(File directory)
     {
         final StopWatch watch = new StopWatch();
         watch.start();
         List<String> args = new ArrayList<>();
-        args.addAll(Arrays.asList(
-                "-A", "trust", "-U", PG_SUPERUSER,
-                "-D", dataDirectory.getPath(), "-E", "UTF-8"));
-        args.addAll(createLocaleOptions());
+        args.addAll(Arrays.asList("-D", directory.getPath()));
+        args.addAll(createInitDbOptions());
         system(INIT_DB, args);
         LOG.info("{} initdb completed in {}", instanceId, watch);
     }
 
-    private Process startPostmaster() throws IOException
+    private List<String> createInitDbOptions()
+    {
+        return createInitDbOptions(initDbNoSync, localeConfig);
+    }
+
+    private static List<String> createInitDbOptions(boolean initDbNoSync, Map<String, String> localeConfig)
+    {
+        final List<String> initDbOptions = new ArrayList<>();
+        initDbOptions.addAll(Arrays.asList("-A", "trust", "-U", PG_SUPERUSER, "-E", "UTF-8"));
+        if (initDbNoSync) {
+            initDbOptions.add("--no-sync");
+        }
+        initDbOptions.addAll(createLocaleOptions(localeConfig));
+        return initDbOptions;
+    }
+
+    /**
+     * Starts the postmaster on a port reserved across JVMs. Another process can still bind the port in the meantime,
+     * in that case the startup is transparently retried with a different port.
+     */
+    private void startPostmasterOnAllocatedPort(boolean useUnixSocket) throws IOException
+    {
+        final PortAllocator portAllocator = PortAllocator.forWorkingDirectory(workingDirectory);
+        for (int attempt = 1; ; attempt++) {
+            portReservation = portAllocator.reserve();
+            try {
+                startPostmaster(portReservation.getPort(), useUnixSocket);
+                return;
+            } catch (IOException e) {
+                portReservation.close();
+                if (attempt >= MAX_PORT_ATTEMPTS || !isPortConflict(e)) {
+                    throw e;
+                }
+                LOG.warn("{} port {} is already in use, retrying with another port", instanceId, port);
+                started.set(false);
+            }
+        }
+    }
+
+    private boolean isPortConflict(IOException e)
+    {
+        // a postmaster that is still running, e.g. after a timeout, must not be abandoned
+        if (Thread.currentThread().isInterrupted() || new File(dataDirectory, "postmaster.pid").exists()) {
+            return false;
+        }
+        final String message = String.valueOf(e.getMessage());
+        return message.contains("Address already in use")
+                || message.contains(".s.PGSQL." + port + ".lock\" already exists")
+                || PortAllocator.isPortInUse(port);
+    }
+
+    private void startPostmaster(int port, boolean useUnixSocket) throws IOException
     {
         final StopWatch watch = new StopWatch();
         watch.start();
         if (started.getAndSet(true)) {
             throw new IllegalStateException("Postmaster already started");
         }
-
-        final List<String> args = new ArrayList<>();
-        args.addAll(Arrays.asList(
-                "-D", dataDirectory.getPath(),
-                "-o", String.join(" ", createInitOptions()),
-                "-w", "start"
-        ));
+        this.port = port;
+        this.unixSocketPath = useUnixSocket ? resolveUnixSocketPath() : null;
 
         final ProcessBuilder builder = new ProcessBuilder();
-        PG_CTL.applyTo(builder, args);
+        if (directLaunch) {
+            final List<String> args = new ArrayList<>(Arrays.asList("-D", dataDirectory.getPath()));
+            args.addAll(createInitOptions());
+            POSTGRES.applyTo(builder, args);
+        } else {
+            final List<String> args = new ArrayList<>();
+            args.addAll(Arrays.asList(
+                    "-D", dataDirectory.getPath(),
+                    "-o", String.join(" ", createInitOptions()),
+                    "-w", "start"
+            ));
+            PG_CTL.applyTo(builder, args);
+        }
 
         builder.redirectErrorStream(true);
         builder.redirectError(errorRedirector);
         builder.redirectOutput(outputRedirector);
         final Process postmaster = builder.start();
+        this.process = postmaster;
 
-        if (outputRedirector.type() == ProcessBuilder.Redirect.Type.PIPE) {
-            ProcessOutputLogger.logOutput(LOG, postmaster, POSTGRES.processName());
-        }
+        final ProcessOutputLogger outputLogger = outputRedirector.type() == ProcessBuilder.Redirect.Type.PIPE
+                ? ProcessOutputLogger.logOutput(LOG, postmaster, POSTGRES.processName())
+                : null;
 
         LOG.info("{} postmaster started as {} on port {}.  Waiting up to {} for server startup to finish.", instanceId, postmaster.toString(), port, pgStartupWait);
 
-        if (registerShutdownHook) {
-            Runtime.getRuntime().addShutdownHook(newCloserThread());
-        }
-
-        waitForServerStartup(watch);
-        return postmaster;
+        waitForServerStartup(watch, postmaster, outputLogger);
     }
 
     private List<String> createInitOptions()
@@ -307,6 +542,14 @@ public class EmbeddedPostgres implements Closeable
         initOptions.addAll(Arrays.asList(
                 "-p", Integer.toString(port),
                 "-F"));
+        if (unixSocketPath != null) {
+            initOptions.add("-c");
+            initOptions.add("unix_socket_directories=" + dataDirectory.getAbsolutePath());
+        } else if (!postgresConfig.containsKey("unix_socket_directories") && !isDefaultSocketDirectoryUsable()) {
+            // otherwise the server would fail to start, as it cannot create its socket in any of the default directories
+            initOptions.add("-c");
+            initOptions.add("unix_socket_directories=");
+        }
 
         for (final Entry<String, String> config : postgresConfig.entrySet())
         {
@@ -317,107 +560,267 @@ public class EmbeddedPostgres implements Closeable
         return initOptions;
     }
 
-    private List<String> createLocaleOptions()
+    /**
+     * The server is configured to create its socket file in the data directory, so that no other instance
+     * can interfere with it, unless the socket directories are configured explicitly.
+     */
+    private String resolveUnixSocketPath()
+    {
+        if (!UnixDomainSocketFactory.isSupported() || postgresConfig.containsKey("unix_socket_directories")) {
+            return null;
+        }
+        final String directory = dataDirectory.getAbsolutePath();
+        final String socketPath = directory + File.separator + ".s.PGSQL." + port;
+        // the server options are passed through pg_ctl as a single string, so the path must not require quoting
+        if (!SOCKET_DIRECTORY_PATTERN.matcher(directory).matches() || !UnixDomainSocketFactory.isValidSocketPath(socketPath)) {
+            LOG.debug("{} the unix domain socket cannot be created in {}, connections will use TCP", instanceId, directory);
+            return null;
+        }
+        return socketPath;
+    }
+
+    /**
+     * The compiled-in socket directories, e.g. /var/run/postgresql on Debian-style systems, may not exist
+     * or be writable. The server only fails to start if it cannot create a socket in any of them.
+     */
+    private boolean isDefaultSocketDirectoryUsable()
+    {
+        if (SystemUtils.IS_OS_WINDOWS) {
+            return true;
+        }
+        final String directories = DEFAULT_SOCKET_DIRECTORIES.computeIfAbsent(pgDir, dir -> describeDefaultSocketDirectories());
+        if (directories == null) {
+            return true;
+        }
+        for (String directory : directories.split(",")) {
+            final String path = directory.trim();
+            // a socket in the abstract namespace needs no directory
+            if (path.startsWith("@") || (!path.isEmpty() && Files.isDirectory(Paths.get(path)) && Files.isWritable(Paths.get(path)))) {
+                return true;
+            }
+        }
+        LOG.debug("{} the default unix socket directories '{}' are not usable, no socket is created", instanceId, directories);
+        return false;
+    }
+
+    private String describeDefaultSocketDirectories()
+    {
+        try {
+            final ProcessBuilder builder = new ProcessBuilder();
+            POSTGRES.applyTo(builder, Collections.singletonList("--describe-config"));
+            builder.redirectErrorStream(true);
+            final Process process = builder.start();
+            String directories = null;
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    final String[] fields = line.split("\t", -1);
+                    if (fields.length > 4 && "unix_socket_directories".equals(fields[0])) {
+                        directories = fields[4];
+                    }
+                }
+            }
+            return process.waitFor() == 0 ? directories : null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (IOException e) {
+            LOG.debug("{} could not determine the default unix socket directories", instanceId, e);
+            return null;
+        }
+    }
+
+    private static List<String> createLocaleOptions(Map<String, String> localeConfig)
     {
         final List<String> localeOptions = new ArrayList<>();
-        for (final Entry<String, String> config : localeConfig.entrySet()) {
+        for (final Entry<String, String> config : new TreeMap<>(localeConfig).entrySet()) {
             localeOptions.add(String.format("--%s=%s", config.getKey(), config.getValue()));
         }
         return localeOptions;
     }
 
-    private void waitForServerStartup(StopWatch watch) throws IOException
+    /**
+     * Waits until the postmaster reports the ready state in its pid file and confirms it by a single startup packet.
+     * Servers older than PostgreSQL 10 do not report their state, so they are probed at a slower pace.
+     * If the server process fails in the meantime, the startup is aborted immediately.
+     */
+    private void waitForServerStartup(StopWatch watch, Process postmaster, ProcessOutputLogger outputLogger) throws IOException
     {
-        Throwable lastCause = null;
         final long start = System.nanoTime();
         final long maxWaitNs = TimeUnit.NANOSECONDS.convert(pgStartupWait.toMillis(), TimeUnit.MILLISECONDS);
+        long nextFallbackProbe = start;
         while (System.nanoTime() - start < maxWaitNs) {
-            try {
-                verifyReady();
+            final String status = ReadinessProbe.readPidFileStatus(dataDirectory);
+            boolean probe = ReadinessProbe.STATUS_READY.equals(status);
+            if (status == null && System.nanoTime() - nextFallbackProbe >= 0 && ReadinessProbe.isPidFilePortWritten(dataDirectory)) {
+                probe = true;
+                nextFallbackProbe = System.nanoTime() + FALLBACK_PROBE_INTERVAL_NS;
+            }
+            if (probe && ReadinessProbe.isAcceptingConnections(port, PG_SUPERUSER, "postgres", READINESS_PROBE_TIMEOUT_MS)) {
                 LOG.info("{} postmaster startup finished in {}", instanceId, watch);
                 return;
-            } catch (final SQLException e) {
-                lastCause = e;
-                LOG.trace("While waiting for server startup", e);
+            }
+            // pg_ctl exits successfully once the server is ready, the postmaster itself must keep running
+            if (!postmaster.isAlive() && (directLaunch || postmaster.exitValue() != 0)) {
+                throw new IOException("Postmaster failed to start with exit code " + postmaster.exitValue() + describeOutput(outputLogger));
             }
 
             try {
-                Thread.sleep(100);
+                Thread.sleep(STARTUP_POLL_INTERVAL_MS);
             } catch (final InterruptedException e) {
                 Thread.currentThread().interrupt();
-                return;
+                throw new InterruptedIOException("Interrupted while waiting for server startup");
             }
         }
-        throw new IOException("Gave up waiting for server to start after " + pgStartupWait.toMillis() + "ms", lastCause);
+        throw new IOException("Gave up waiting for server to start after " + pgStartupWait.toMillis() + "ms" + describeOutput(outputLogger));
     }
 
-    private void verifyReady() throws SQLException
+    private static String describeOutput(ProcessOutputLogger outputLogger)
     {
-        final InetAddress localhost = InetAddress.getLoopbackAddress();
-        try (Socket sock = new Socket()) {
-            sock.setSoTimeout((int) Duration.ofMillis(500).toMillis());
-            sock.connect(new InetSocketAddress(localhost, port), (int) Duration.ofMillis(500).toMillis());
-        } catch (final IOException e) {
-            throw new SQLException("connect failed", e);
+        if (outputLogger == null) {
+            return "";
         }
-        try (Connection c = getPostgresDatabase().getConnection() ;
-                Statement s = c.createStatement() ;
-                ResultSet rs = s.executeQuery("SELECT 1"))
-        {
-            if (!rs.next()) {
-                throw new IllegalStateException("expecting single row");
-            }
-            if (1 != rs.getInt(1)) {
-                throw new IllegalStateException("expecting 1");
-            }
-            if (rs.next()) {
-                throw new IllegalStateException("expecting single row");
-            }
+        final List<String> lines = outputLogger.getRecentLines(PROCESS_OUTPUT_WAIT_MS);
+        return lines.isEmpty() ? "" : ", last output lines:" + System.lineSeparator() + String.join(System.lineSeparator(), lines);
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        if (closed.getAndSet(true)) {
+            return;
+        }
+        ClusterReaper.getInstance().unregister(this);
+        try {
+            stopServer();
+            releaseResources();
+        } finally {
+            closeFuture.complete(null);
         }
     }
 
-    private Thread newCloserThread()
+    /**
+     * Closes the cluster without waiting for it. If the data directory is going to be deleted, the server is stopped
+     * in the immediate mode, otherwise in the fast mode as by {@link #close()}. Waiting for the server to exit
+     * and deleting the data directory are left to a shared background reaper.
+     * The returned future completes once the teardown is finished, exceptionally if it failed.
+     */
+    public CompletableFuture<Void> closeAsync()
     {
-        final Thread closeThread = new Thread(new Runnable() {
-            @Override
-            public void run()
-            {
-                try {
-                    EmbeddedPostgres.this.close();
-                }
-                catch (IOException ex) {
-                    LOG.error("Unexpected IOException from Closeables.close", ex);
-                }
+        if (closed.getAndSet(true)) {
+            return closeFuture;
+        }
+        ClusterReaper.getInstance().unregister(this);
+        final Long pid = isDataDirectoryDiscarded() ? getPostmasterPid() : null;
+        final CompletableFuture<Void> teardown;
+        if (pid != null && signalQuietly(pid, "QUIT")) {
+            teardown = ClusterReaper.getInstance().submit(() -> {
+                awaitPostmasterExit(pid);
+                releaseResources();
+            });
+        } else {
+            teardown = ClusterReaper.getInstance().submit(() -> {
+                stopServer();
+                releaseResources();
+            });
+        }
+        teardown.whenComplete((result, e) -> {
+            if (e != null) {
+                LOG.error("Could not tear down " + instanceId, e);
+                closeFuture.completeExceptionally(e);
+            } else {
+                closeFuture.complete(null);
             }
         });
-        closeThread.setName("postgres-" + instanceId + "-closer");
-        return closeThread;
+        return closeFuture;
     }
 
-    @Override
-    public void close() throws IOException
+    private boolean isDataDirectoryDiscarded()
     {
-        if (closed.getAndSet(true)) {
-            return;
+        return cleanDataDirectory && System.getProperty("ot.epg.no-cleanup") == null;
+    }
+
+    private Long getPostmasterPid()
+    {
+        if (SystemUtils.IS_OS_WINDOWS || process == null) {
+            return null;
+        }
+        return directLaunch ? ProcessSignals.pid(process) : ReadinessProbe.readPostmasterPid(dataDirectory);
+    }
+
+    private boolean signalQuietly(long pid, String signal)
+    {
+        try {
+            return ProcessSignals.signal(pid, signal);
+        } catch (IOException e) {
+            LOG.debug("{} could not send SIG{} to the postmaster", instanceId, signal, e);
+            return false;
+        }
+    }
+
+    /**
+     * The postmaster removes its pid file once all of its children have exited.
+     */
+    private void awaitPostmasterExit(long pid) throws IOException
+    {
+        final StopWatch watch = new StopWatch();
+        watch.start();
+        final File pidFile = new File(dataDirectory, "postmaster.pid");
+        final long stopWaitMs = TimeUnit.SECONDS.toMillis(Long.parseLong(PG_STOP_WAIT_S));
+        try {
+            while (pidFile.exists() || (directLaunch && process.isAlive())) {
+                if (watch.getTime() > stopWaitMs) {
+                    LOG.warn("{} postmaster did not stop in {}s, killing it", instanceId, PG_STOP_WAIT_S);
+                    signalQuietly(pid, "KILL");
+                    return;
+                }
+                Thread.sleep(STOP_POLL_INTERVAL_MS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the postmaster to stop");
         }
+        LOG.info("{} shut down postmaster in {}", instanceId, watch);
+    }
+
+    private void stopServer()
+    {
         final StopWatch watch = new StopWatch();
         watch.start();
         try {
-            pgCtl(dataDirectory, "stop");
-            LOG.info("{} shut down postmaster in {}", instanceId, watch);
+            if (directLaunch) {
+                stopPostmaster();
+                LOG.info("{} shut down postmaster in {}", instanceId, watch);
+            } else if (process != null && new File(dataDirectory, "postmaster.pid").exists()) {
+                pgCtl(dataDirectory, "stop");
+                LOG.info("{} shut down postmaster in {}", instanceId, watch);
+            }
         } catch (final Exception e) {
             LOG.error("Could not stop postmaster " + instanceId, e);
         }
+    }
+
+    private void releaseResources() throws IOException
+    {
+        if (portReservation != null) {
+            try {
+                portReservation.close();
+            } catch (IOException e) {
+                LOG.error("while releasing port " + port, e);
+            }
+        }
         if (lock != null) {
             lock.release();
         }
         try {
-            lockStream.close();
+            if (lockStream != null) {
+                lockStream.close();
+            }
         } catch (IOException e) {
             LOG.error("while closing lockStream", e);
         }
 
-        if (cleanDataDirectory && System.getProperty("ot.epg.no-cleanup") == null) {
+        if (isDataDirectoryDiscarded()) {
             try {
                 FileUtils.deleteDirectory(dataDirectory);
             } catch (IOException e) {
@@ -428,6 +831,34 @@ public class EmbeddedPostgres implements Closeable
         }
     }
 
+    /**
+     * Stops a directly launched postmaster using the fast shutdown mode (SIGINT).
+     * If it does not stop in time, the immediate shutdown mode (SIGQUIT) is used and finally the process is killed.
+     */
+    private void stopPostmaster() throws IOException, InterruptedException
+    {
+        if (process == null) {
+            return;
+        }
+        final Long pid = ProcessSignals.pid(process);
+        if (pid == null) {
+            LOG.debug("{} could not determine the postmaster pid, stopping it with pg_ctl", instanceId);
+            pgCtl(dataDirectory, "stop");
+            return;
+        }
+        final long stopWaitSeconds = Long.parseLong(PG_STOP_WAIT_S);
+        if (process.isAlive() && ProcessSignals.signal(pid, "INT") && process.waitFor(stopWaitSeconds, TimeUnit.SECONDS)) {
+            return;
+        }
+        if (process.isAlive()) {
+            LOG.warn("{} postmaster did not stop in {}s, using immediate shutdown", instanceId, stopWaitSeconds);
+            if (ProcessSignals.signal(pid, "QUIT") && process.waitFor(stopWaitSeconds, TimeUnit.SECONDS)) {
+                return;
+            }
+            process.destroyForcibly().waitFor();
+        }
+    }
+
     private void pgCtl(File dir, String action)
     {
         final List<String> args = new ArrayList<>();
@@ -439,54 +870,49 @@ public class EmbeddedPostgres implements Closeable
         system(PG_CTL, args);
     }
 
-    private void cleanOldDataDirectories(File parentDirectory)
+    private static File getWorkingDirectory()
     {
-        final File[] children = parentDirectory.listFiles();
-        if (children == null) {
-            return;
+        final File tempWorkingDirectory = new File(System.getProperty("java.io.tmpdir"), "embedded-pg");
+        return new File(System.getProperty("ot.epg.working-dir", tempWorkingDirectory.getPath()));
+    }
+
+    /**
+     * Returns a directory on a memory-backed file system with enough free space for a cluster,
+     * or {@code null} if there is none.
+     */
+    private static File getMemoryWorkingDirectory()
+    {
+        final String configuredDirectory = System.getProperty("ot.epg.memory-dir");
+        final List<File> candidates = new ArrayList<>();
+        if (configuredDirectory != null) {
+            candidates.add(new File(configuredDirectory));
+        } else {
+            candidates.add(new File("/dev/shm"));
+            Optional.ofNullable(System.getenv("XDG_RUNTIME_DIR")).map(File::new).ifPresent(candidates::add);
+            candidates.add(new File(System.getProperty("java.io.tmpdir")));
         }
-        for (final File dir : children)
-        {
-            if (!dir.isDirectory()) {
-                continue;
-            }
 
-            final File lockFile = new File(dir, LOCK_FILE_NAME);
-            final boolean isTooNew = System.currentTimeMillis() - lockFile.lastModified() < 10 * 60 * 1000;
-            if (!lockFile.exists() || isTooNew) {
+        for (final File candidate : candidates) {
+            final File directory = new File(candidate, "embedded-pg");
+            if (!candidate.isDirectory() || !candidate.canWrite() || (directory.exists() && !directory.canWrite())) {
                 continue;
             }
-            try (FileOutputStream fos = new FileOutputStream(lockFile);
-                 FileLock lock = fos.getChannel().tryLock()) {
-                if (lock != null) {
-                    LOG.info("Found stale data directory {}", dir);
-                    if (new File(dir, "postmaster.pid").exists()) {
-                        try {
-                            pgCtl(dir, "stop");
-                            LOG.info("Shut down orphaned postmaster!");
-                        } catch (Exception e) {
-                            if (LOG.isDebugEnabled()) {
-                                LOG.warn("Failed to stop postmaster " + dir, e);
-                            } else {
-                                LOG.warn("Failed to stop postmaster " + dir + ": " + e.getMessage());
-                            }
-                        }
-                    }
-                    FileUtils.deleteDirectory(dir);
+            try {
+                final FileStore fileStore = Files.getFileStore(candidate.toPath());
+                if (configuredDirectory == null && !"tmpfs".equals(fileStore.type())) {
+                    continue;
+                }
+                if (fileStore.getUsableSpace() < MEMORY_STORAGE_REQUIRED_SPACE) {
+                    LOG.warn("Not enough free space in {} ({} MB available, {} MB required)", candidate,
+                            fileStore.getUsableSpace() / 1024 / 1024, MEMORY_STORAGE_REQUIRED_SPACE / 1024 / 1024);
+                    continue;
                 }
-            } catch (final OverlappingFileLockException e) {
-                // The directory belongs to another instance in this VM.
-                LOG.trace("While cleaning old data directories", e);
-            } catch (final Exception e) {
-                LOG.warn("While cleaning old data directories", e);
+                return directory;
+            } catch (IOException e) {
+                LOG.debug("Could not inspect file system of {}", candidate, e);
             }
         }
-    }
-
-    private static File getWorkingDirectory()
-    {
-        final File tempWorkingDirectory = new File(System.getProperty("java.io.tmpdir"), "embedded-pg");
-        return new File(System.getProperty("ot.epg.working-dir", tempWorkingDirectory.getPath()));
+        return null;
     }
 
     public static EmbeddedPostgres start() throws IOException
@@ -508,11 +934,21 @@ public class EmbeddedPostgres implements Closeable
         private final Map<String, String> localeConfig = new HashMap<>();
         private boolean builderCleanDataDirectory = true;
         private boolean builderRegisterShutdownHook = true;
+        private boolean builderUseInitDbCache = true;
+        private boolean builderUsePreparedTemplateCache = false;
+        private File builderSeedDataDirectory;
+        private boolean builderInitDbNoSync = false;
+        private Storage builderStorage = Storage.DISK;
+        private boolean builderDirectLaunch = false;
+        private boolean builderUseUnixSocket = true;
+        private CreateDatabaseStrategy builderCreateDatabaseStrategy = CreateDatabaseStrategy.DEFAULT;
         private int builderPort = 0;
         private final Map<String, String> connectConfig = new HashMap<>();
         private PgBinaryResolver pgBinaryResolver = DefaultPostgresBinaryResolver.INSTANCE;
+        private PgDirectoryResolver pgDirectoryResolver;
         private Duration pgStartupWait = DEFAULT_PG_STARTUP_WAIT;
         private Consumer<File> dataDirectoryCustomizer;
+        private DataDirectoryCloner dataDirectoryCloner = DefaultDataDirectoryCloner.INSTANCE;
 
         private ProcessBuilder.Redirect errRedirector = ProcessBuilder.Redirect.PIPE;
         private ProcessBuilder.Redirect outRedirector = ProcessBuilder.Redirect.PIPE;
@@ -542,6 +978,131 @@ public class EmbeddedPostgres implements Closeable
             return this;
         }
 
+        /**
+         * Enables or disables the caching of initdb results. When enabled (default), initdb runs only once
+         * per machine for the same binaries and locale settings and new data directories are copies of the cached cluster.
+         */
+        public Builder setUseInitDbCache(boolean useInitDbCache) {
+            builderUseInitDbCache = useInitDbCache;
+            return this;
+        }
+
+        /**
+         * Enables or disables the caching of prepared templates across runs (disabled by default). When enabled,
+         * {@link PreparedDbProvider} stores the data directory of each template prepared by a {@link CacheableDatabasePreparer}
+         * in the working directory and starts its clusters from a copy, so the preparation is skipped as long as
+         * the content of the migrations, the binaries and the configuration do not change.
+         * Entries that have not been used for a week are removed.
+         * <p>
+         * A database cannot be moved between clusters without a dump and restore, so unlike the templates that are
+         * not cached, each cached template gets a cluster of its own instead of sharing one with the other preparers.
+         * The cache pays off when the preparation takes longer than starting a cluster, about a second;
+         * with many cheap preparers in one run, sharing a single cluster without the cache may be faster.
+         */
+        public Builder setUsePreparedTemplateCache(boolean usePreparedTemplateCache) {
+            builderUsePreparedTemplateCache = usePreparedTemplateCache;
+            return this;
+        }
+
+        boolean isUsePreparedTemplateCache() {
+            return builderUsePreparedTemplateCache;
+        }
+
+        /**
+         * Sets a stopped data directory that is copied into new data directories instead of the result of initdb.
+         */
+        Builder setSeedDataDirectory(File seedDataDirectory) {
+            builderSeedDataDirectory = seedDataDirectory;
+            return this;
+        }
+
+        File resolveWorkingDirectory() {
+            return Optional.ofNullable(overrideWorkingDirectory).orElse(getWorkingDirectory());
+        }
+
+        /**
+         * Returns a key covering everything that affects the content of new data directories and the server,
+         * i.e. the binaries, the initdb options and the server configuration.
+         */
+        String getDataDirectoryCacheKey() {
+            final File pgDir = resolvePgDir(pgDirectoryResolver, pgBinaryResolver, overrideWorkingDirectory);
+            return DigestUtils.md5Hex(getInitDbCacheKey(pgDir, createInitDbOptions(builderInitDbNoSync, localeConfig)) + "|" + new TreeMap<>(config));
+        }
+
+        /**
+         * Sets the strategy used to copy the cached initdb result into new data directories.
+         * By default, copy-on-write reflinks are used if supported by the file system, otherwise the files are copied in parallel.
+         */
+        public Builder setDataDirectoryCloner(DataDirectoryCloner dataDirectoryCloner) {
+            this.dataDirectoryCloner = Objects.requireNonNull(dataDirectoryCloner);
+            return this;
+        }
+
+        /**
+         * Applies settings suited for throwaway clusters that trade durability for speed: initdb does not wait
+         * for the files to be flushed to disk, the server runs without fsync, full page writes and WAL archiving,
+         * checkpoints are rare, autovacuum is throttled and the {@code C} collation is used.
+         * A crash of the host may leave the cluster corrupted, which is irrelevant for test databases.
+         * Individual settings can still be overridden afterwards. Requires PostgreSQL 9.5 or newer.
+         */
+        public Builder useEphemeralProfile() {
+            builderInitDbNoSync = true;
+            config.put("fsync", "off");
+            config.put("full_page_writes", "off");
+            config.put("wal_level", "minimal");
+            config.put("max_wal_senders", "0");
+            config.put("checkpoint_timeout", "30min");
+            config.put("max_wal_size", "1GB");
+            config.put("autovacuum_naptime", "5min");
+            config.put("autovacuum_max_workers", "1");
+            localeConfig.put("lc-collate", "C");
+            return this;
+        }
+
+        /**
+         * Sets the medium the data directory is placed on. {@link Storage#MEMORY} falls back to the disk
+         * if no memory-backed file system with enough free space is available.
+         * Has no effect if the data directory is set explicitly.
+         */
+        public Builder setStorage(Storage storage) {
+            builderStorage = Objects.requireNonNull(storage);
+            return this;
+        }
+
+        /**
+         * Starts the {@code postgres} server process directly instead of through {@code pg_ctl}, which saves
+         * a process launch on start and stop. {@link EmbeddedPostgres#getProcess()} then returns the server process
+         * and it is stopped by signals. Not supported on Windows, where {@code pg_ctl} is always used.
+         */
+        public Builder setDirectLaunch(boolean directLaunch) {
+            builderDirectLaunch = directLaunch;
+            return this;
+        }
+
+        /**
+         * Enables or disables connecting through a unix domain socket instead of the loopback TCP stack.
+         * When enabled (default), it is used if supported by the runtime (Java 16+) and the operating system,
+         * the server keeps listening on the TCP port as well. Otherwise, the server creates its socket in the compiled-in
+         * directory as usual, or none at all if that directory is missing or not writable.
+         */
+        public Builder setUseUnixSocket(boolean useUnixSocket) {
+            builderUseUnixSocket = useUnixSocket;
+            return this;
+        }
+
+        /**
+         * Sets the strategy used by {@link PreparedDbProvider} to create databases from the prepared template.
+         * It requires PostgreSQL 15+, older servers always use their default strategy.
+         */
+        public Builder setCreateDatabaseStrategy(CreateDatabaseStrategy createDatabaseStrategy) {
+            builderCreateDatabaseStrategy = Objects.requireNonNull(createDatabaseStrategy);
+            return this;
+        }
+
+        CreateDatabaseStrategy getCreateDatabaseStrategy() {
+            return builderCreateDatabaseStrategy;
+        }
+
         public Builder setDataDirectory(Path path) {
             return setDataDirectory(path.toFile());
         }
@@ -580,6 +1141,14 @@ public class EmbeddedPostgres implements Closeable
             return this;
         }
 
+        /**
+         * Returns whether the port or the data directory is set explicitly, so that a cluster started by this builder
+         * must be fully stopped before another one can use them.
+         */
+        public boolean hasFixedPortOrDataDirectory() {
+            return builderPort != 0 || builderDataDirectory != null;
+        }
+
         public Builder setErrorRedirector(ProcessBuilder.Redirect errRedirector) {
             this.errRedirector = errRedirector;
             return this;
@@ -596,22 +1165,64 @@ public class EmbeddedPostgres implements Closeable
             return this;
         }
 
+        /**
+         * Sets a resolver of an already installed postgres distribution. If set, it takes precedence over
+         * the {@link #setPgBinaryResolver(PgBinaryResolver) binary resolver} and no archive is extracted.
+         */
+        public Builder setPgDirectoryResolver(PgDirectoryResolver pgDirectoryResolver) {
+            this.pgDirectoryResolver = pgDirectoryResolver;
+            return this;
+        }
+
+        /**
+         * Uses the postgres distribution installed in the given directory,
+         * which must contain the {@code bin/initdb}, {@code bin/pg_ctl} and {@code bin/postgres} executables.
+         */
+        public Builder setBinariesDirectory(File directory) {
+            return setPgDirectoryResolver(new FixedDirectoryResolver(directory));
+        }
+
+        public Builder setBinariesDirectory(Path path) {
+            return setBinariesDirectory(path.toFile());
+        }
+
         public Builder setDataDirectoryCustomizer(final Consumer<File> dataDirectoryCustomizer) {
             this.dataDirectoryCustomizer = dataDirectoryCustomizer;
             return this;
         }
 
         public EmbeddedPostgres start() throws IOException {
-            if (builderPort == 0)
-            {
-                builderPort = detectPort();
+            File dataParentDirectory = parentDirectory;
+            if (builderDataDirectory == null && builderStorage == Storage.MEMORY) {
+                final File memoryDirectory = getMemoryWorkingDirectory();
+                if (memoryDirectory != null) {
+                    LOG.info("Data directory will be placed in memory: {}", memoryDirectory);
+                    // the data directory is created under this parent, so that stale ones are cleaned up from there
+                    dataParentDirectory = memoryDirectory;
+                } else {
+                    LOG.info("No memory-backed file system with enough free space found, data directory will be placed on disk");
+                }
             }
-            if (builderDataDirectory == null) {
-                builderDataDirectory = Files.createTempDirectory("epg").toFile();
+            File dataDirectory = builderDataDirectory;
+            if (dataDirectory == null && dataParentDirectory == parentDirectory) {
+                dataDirectory = Files.createTempDirectory("epg").toFile();
             }
-            return new EmbeddedPostgres(parentDirectory, builderDataDirectory, builderCleanDataDirectory, builderRegisterShutdownHook,
-                    config, localeConfig, builderPort, connectConfig, pgBinaryResolver, errRedirector, outRedirector,
-                    pgStartupWait, overrideWorkingDirectory, dataDirectoryCustomizer);
+            return new EmbeddedPostgres(dataParentDirectory, dataDirectory, builderCleanDataDirectory, builderRegisterShutdownHook,
+                    config, localeConfig, builderPort, connectConfig, pgBinaryResolver, pgDirectoryResolver, errRedirector, outRedirector,
+                    pgStartupWait, overrideWorkingDirectory, dataDirectoryCustomizer, builderUseInitDbCache, dataDirectoryCloner,
+                    builderInitDbNoSync, builderDirectLaunch, builderUseUnixSocket, builderSeedDataDirectory);
+        }
+
+        /**
+         * Starts the cluster on the given executor, so that the caller can do other work in the meantime.
+         * The builder must not be modified until the returned future completes.
+         *
+         * <p>
+         * Cancelling the future interrupts the startup and tears down the partially started cluster.
+         * A cluster that finishes its startup after the future has been cancelled is closed right away.
+         */
+        public CompletableFuture<EmbeddedPostgres> startAsync(Executor executor) {
+            return AsyncStart.start(this::start, executor);
         }
 
         @Override
@@ -625,13 +1236,23 @@ public class EmbeddedPostgres implements Closeable
             Builder builder = (Builder) o;
             return builderCleanDataDirectory == builder.builderCleanDataDirectory &&
                     builderRegisterShutdownHook == builder.builderRegisterShutdownHook &&
+                    builderUseInitDbCache == builder.builderUseInitDbCache &&
+                    builderUsePreparedTemplateCache == builder.builderUsePreparedTemplateCache &&
+                    builderInitDbNoSync == builder.builderInitDbNoSync &&
+                    builderStorage == builder.builderStorage &&
+                    builderDirectLaunch == builder.builderDirectLaunch &&
+                    builderUseUnixSocket == builder.builderUseUnixSocket &&
+                    builderCreateDatabaseStrategy == builder.builderCreateDatabaseStrategy &&
                     builderPort == builder.builderPort &&
                     Objects.equals(parentDirectory, builder.parentDirectory) &&
                     Objects.equals(builderDataDirectory, builder.builderDataDirectory) &&
+                    Objects.equals(builderSeedDataDirectory, builder.builderSeedDataDirectory) &&
                     Objects.equals(config, builder.config) &&
                     Objects.equals(localeConfig, builder.localeConfig) &&
                     Objects.equals(connectConfig, builder.connectConfig) &&
                     Objects.equals(pgBinaryResolver, builder.pgBinaryResolver) &&
+                    Objects.equals(pgDirectoryResolver, builder.pgDirectoryResolver) &&
+                    Objects.equals(dataDirectoryCloner, builder.dataDirectoryCloner) &&
                     Objects.equals(pgStartupWait, builder.pgStartupWait) &&
                     Objects.equals(errRedirector, builder.errRedirector) &&
                     Objects.equals(outRedirector, builder.outRedirector) &&
@@ -641,7 +1262,37 @@ public class EmbeddedPostgres implements Closeable
 
         @Override
         public int hashCode() {
-            return Objects.hash(parentDirectory, builderDataDirectory, config, localeConfig, builderCleanDataDirectory, builderRegisterShutdownHook, builderPort, connectConfig, pgBinaryResolver, pgStartupWait, errRedirector, outRedirector);
+            return Objects.hash(parentDirectory, builderDataDirectory, config, localeConfig, builderCleanDataDirectory, builderRegisterShutdownHook, builderUseInitDbCache, builderUsePreparedTemplateCache, builderSeedDataDirectory, builderInitDbNoSync, builderStorage, builderDirectLaunch, builderUseUnixSocket, builderCreateDatabaseStrategy, builderPort, connectConfig, pgBinaryResolver, pgDirectoryResolver, dataDirectoryCloner, pgStartupWait, errRedirector, outRedirector);
+        }
+    }
+
+    private static class FixedDirectoryResolver implements PgDirectoryResolver
+    {
+        private final File directory;
+
+        FixedDirectoryResolver(File directory) {
+            this.directory = Objects.requireNonNull(directory, "Binaries directory cannot be null");
+        }
+
+        @Override
+        public File getPgDirectory(String system, String machineHardware) {
+            return directory;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            return directory.equals(((FixedDirectoryResolver) o).directory);
+        }
+
+        @Override
+        public int hashCode() {
+            return directory.hashCode();
         }
     }
 
@@ -657,11 +1308,17 @@ public class EmbeddedPostgres implements Closeable
 
             final Process process = builder.start();
 
-            if (outputRedirector.type() == ProcessBuilder.Redirect.Type.PIPE) {
-                ProcessOutputLogger.logOutput(LOG, process, command.processName());
-            }
-            if (0 != process.waitFor()) {
-                throw new IllegalStateException(String.format("Process %s failed", builder.command()));
+            final ProcessOutputLogger outputLogger = outputRedirector.type() == ProcessBuilder.Redirect.Type.PIPE
+                    ? ProcessOutputLogger.logOutput(LOG, process, command.processName())
+                    : null;
+            try {
+                if (0 != process.waitFor()) {
+                    throw new IllegalStateException(String.format("Process %s failed", builder.command()) + describeOutput(outputLogger));
+                }
+            } catch (final InterruptedException e) {
+                process.destroyForcibly();
+                Thread.currentThread().interrupt();
+                throw e;
             }
         } catch (final RuntimeException e) { // NOPMD
             throw e;
@@ -677,8 +1334,11 @@ public class EmbeddedPostgres implements Closeable
         }
     }
 
+    private static final Lock INITDB_CACHE_LOCK = new ReentrantLock();
     private static final Lock PREPARE_BINARIES_LOCK = new ReentrantLock();
     private static final Map<PgBinaryResolver, File> PREPARE_BINARIES = new HashMap<>();
+    private static final Map<PgDirectoryResolver, File> PREPARE_DIRECTORIES = new HashMap<>();
+    private static final Map<File, String> DEFAULT_SOCKET_DIRECTORIES = new ConcurrentHashMap<>();
 
     /**
      * Get current operating system string. The string is used in the appropriate postgres binary name.
@@ -710,15 +1370,15 @@ public class EmbeddedPostgres implements Closeable
     }
 
     /**
-     * Unpack archive compressed by tar with xz compression. By default system tar is used (faster). If not found, then the
-     * java implementation takes place.
+     * Unpack archive compressed by tar with xz compression. Multi-block archives are decompressed in parallel,
+     * see {@link ParallelXzInputStream}.
      *
-     * @param stream    A stream with the postgres binaries.
+     * @param archive   A file with the postgres binaries.
      * @param targetDir The directory to extract the content to.
      */
-    private static void extractTxz(InputStream stream, File targetDir) throws IOException {
+    private static void extractTxz(File archive, File targetDir) throws IOException {
         try (
-                XZInputStream xzIn = new XZInputStream(stream);
+                InputStream xzIn = ParallelXzInputStream.open(archive, Runtime.getRuntime().availableProcessors());
                 TarArchiveInputStream tarIn = new TarArchiveInputStream(xzIn)
         ) {
             final Set<File> dirsToUpdate = new HashSet<>();
@@ -745,8 +1405,8 @@ public class EmbeddedPostgres implements Closeable
                     Files.createSymbolicLink(fsObject.toPath(), target);
                 } else if (entry.isFile()) {
                     byte[] content = new byte[(int) entry.getSize()];
-                    int read = tarIn.read(content, 0, content.length);
-                    if (read == -1) {
+                    int read = IOUtils.read(tarIn, content);
+                    if (read != content.length) {
                         throw new IllegalStateException("could not read " + individualFile);
                     }
                     mkdirs(fsObject.getParentFile());
@@ -798,6 +1458,13 @@ public class EmbeddedPostgres implements Closeable
         }
     }
 
+    private static File resolvePgDir(PgDirectoryResolver pgDirectoryResolver, PgBinaryResolver pgBinaryResolver, File overrideWorkingDirectory)
+    {
+        return Optional.ofNullable(pgDirectoryResolver)
+                .map(EmbeddedPostgres::prepareDirectory)
+                .orElseGet(() -> prepareBinaries(pgBinaryResolver, overrideWorkingDirectory));
+    }
+
     private static File prepareBinaries(PgBinaryResolver pgBinaryResolver, File overrideWorkingDirectory)
     {
         PREPARE_BINARIES_LOCK.lock();
@@ -810,6 +1477,18 @@ public class EmbeddedPostgres implements Closeable
             final String machineHardware = getArchitecture();
 
             LOG.info("Detected a {} {} system", system, machineHardware);
+            File workingDirectory = Optional.ofNullable(overrideWorkingDirectory).orElse(getWorkingDirectory());
+
+            final String cacheKey = getPgBinaryCacheKey(pgBinaryResolver, system, machineHardware);
+            if (cacheKey != null) {
+                final File indexedPgDir = PgBinariesIndex.lookup(workingDirectory, cacheKey);
+                if (indexedPgDir != null && isPgBinReady(new File(indexedPgDir, ".exists"))) {
+                    PREPARE_BINARIES.put(pgBinaryResolver, indexedPgDir);
+                    LOG.info("Postgres binaries at {}", indexedPgDir);
+                    return indexedPgDir;
+                }
+            }
+
             File pgDir;
             final InputStream pgBinary;
             try {
@@ -822,13 +1501,18 @@ public class EmbeddedPostgres implements Closeable
                 throw new IllegalStateException("No Postgres binary found for " + system + " / " + machineHardware);
             }
 
-            try (DigestInputStream pgArchiveData = new DigestInputStream(pgBinary, MessageDigest.getInstance("MD5"));
-                 ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
-                IOUtils.copy(pgArchiveData, baos);
-                pgArchiveData.close();
+            Path pgArchive = null;
+            try {
+                mkdirs(workingDirectory);
+                pgArchive = Files.createTempFile(workingDirectory.toPath(), "PG-", ".txz.tmp");
+
+                // the archive is spooled to disk while being hashed, so the heap usage does not depend on its size
+                final MessageDigest pgArchiveDigest = MessageDigest.getInstance("MD5");
+                try (DigestInputStream pgArchiveData = new DigestInputStream(pgBinary, pgArchiveDigest)) {
+                    Files.copy(pgArchiveData, pgArchive, StandardCopyOption.REPLACE_EXISTING);
+                }
 
-                String pgDigest = Hex.encodeHexString(pgArchiveData.getMessageDigest().digest());
-                File workingDirectory = Optional.ofNullable(overrideWorkingDirectory).orElse(getWorkingDirectory());
+                String pgDigest = Hex.encodeHexString(pgArchiveDigest.digest());
                 pgDir = new File(workingDirectory, String.format("PG-%s", pgDigest));
 
                 mkdirs(pgDir);
@@ -842,9 +1526,7 @@ public class EmbeddedPostgres implements Closeable
                          FileLock unpackLock = lockStream.getChannel().tryLock()) {
                         if (unpackLock != null) {
                             LOG.info("Extracting Postgres...");
-                            try (ByteArrayInputStream bais = new ByteArrayInputStream(baos.toByteArray())) {
-                                extractTxz(bais, pgDir);
-                            }
+                            extractTxz(pgArchive.toFile(), pgDir);
                             if (!pgDirExists.createNewFile()) {
                                 pgDirExists.setLastModified(System.currentTimeMillis());
                             }
@@ -870,6 +1552,11 @@ public class EmbeddedPostgres implements Closeable
             } catch (final InterruptedException ie) {
                 Thread.currentThread().interrupt();
                 throw new ExceptionInInitializerError(ie);
+            } finally {
+                deleteArchive(pgArchive);
+            }
+            if (cacheKey != null) {
+                PgBinariesIndex.store(workingDirectory, cacheKey, pgDir);
             }
             PREPARE_BINARIES.put(pgBinaryResolver, pgDir);
             LOG.info("Postgres binaries at {}", pgDir);
@@ -879,6 +1566,66 @@ public class EmbeddedPostgres implements Closeable
         }
     }
 
+    private static File prepareDirectory(PgDirectoryResolver pgDirectoryResolver)
+    {
+        PREPARE_BINARIES_LOCK.lock();
+        try {
+            if (PREPARE_DIRECTORIES.containsKey(pgDirectoryResolver)) {
+                return PREPARE_DIRECTORIES.get(pgDirectoryResolver);
+            }
+
+            final String system = getOS();
+            final String machineHardware = getArchitecture();
+
+            final File pgDir;
+            try {
+                pgDir = pgDirectoryResolver.getPgDirectory(system, machineHardware);
+            } catch (final IOException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+
+            if (pgDir == null) {
+                LOG.info("No Postgres installation found for {} / {}, falling back to the binary resolver", system, machineHardware);
+                PREPARE_DIRECTORIES.put(pgDirectoryResolver, null);
+                return null;
+            }
+
+            final String extension = SystemUtils.IS_OS_WINDOWS ? ".exe" : "";
+            for (String commandName : Arrays.asList("initdb", "pg_ctl", "postgres")) {
+                final File executable = new File(pgDir, "bin/" + commandName + extension);
+                if (!executable.isFile() || !executable.canExecute()) {
+                    throw new IllegalStateException("Postgres installation at " + pgDir + " does not contain an executable " + executable.getName());
+                }
+            }
+
+            PREPARE_DIRECTORIES.put(pgDirectoryResolver, pgDir);
+            LOG.info("Postgres binaries at {}", pgDir);
+            return pgDir;
+        } finally {
+            PREPARE_BINARIES_LOCK.unlock();
+        }
+    }
+
+    private static String getPgBinaryCacheKey(PgBinaryResolver pgBinaryResolver, String system, String machineHardware) {
+        try {
+            return pgBinaryResolver.getPgBinaryCacheKey(system, machineHardware);
+        } catch (IOException e) {
+            LOG.warn("Could not resolve the cache key of postgres binaries", e);
+            return null;
+        }
+    }
+
+    private static void deleteArchive(Path pgArchive) {
+        if (pgArchive == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(pgArchive);
+        } catch (IOException e) {
+            LOG.warn("Could not delete temporary archive {}", pgArchive, e);
+        }
+    }
+
     private static boolean isPgBinReady(File pgDirExists) {
         if (!pgDirExists.exists()) {
             return false;
@@ -15,17 +15,21 @@ package io.zonky.test.db.postgres.embedded;
 
 import org.apache.commons.lang3.reflect.MethodUtils;
 import org.flywaydb.core.Flyway;
+import org.flywaydb.core.api.Location;
 import org.flywaydb.core.api.configuration.FluentConfiguration;
 
 import javax.sql.DataSource;
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.sql.SQLException;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.TreeMap;
 
-public final class FlywayPreparer implements DatabasePreparer {
+public final class FlywayPreparer implements CacheableDatabasePreparer {
 
     private final FluentConfiguration configuration;
     private final List<String> locations;
@@ -73,6 +77,31 @@ public final class FlywayPreparer implements DatabasePreparer {
         }
     }
 
+    /**
+     * Returns a hash of the configuration and the content of all migrations in the classpath and filesystem locations.
+     * Migrations in other locations cannot be hashed, so the result is not cached.
+     */
+    @Override
+    public String getCacheKey() throws IOException {
+        ResourceDigest digest = new ResourceDigest()
+                .update(String.valueOf(locations))
+                .update(String.valueOf(properties != null ? new TreeMap<>(properties) : null));
+        for (Location location : configuration.getLocations()) {
+            boolean hashed;
+            if (location.isClassPath()) {
+                hashed = digest.updateClasspath(configuration.getClassLoader(), location.getPath());
+            } else if (location.isFileSystem()) {
+                hashed = digest.updateDirectory(Paths.get(location.getPath()));
+            } else {
+                hashed = false;
+            }
+            if (!hashed) {
+                return null;
+            }
+        }
+        return digest.toHex();
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
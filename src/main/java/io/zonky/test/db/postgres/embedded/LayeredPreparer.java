@@ -0,0 +1,96 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.zonky.test.db.postgres.embedded;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.Objects;
+
+/**
+ * A preparer that applies a child preparer on top of the result of a parent preparer.
+ *
+ * <p>
+ * {@link PreparedDbProvider} prepares each layer only once: the child runs against a clone of the template
+ * of the parent, which is shared by all layers built on top of it, and the result becomes a new template.
+ * Layers can be nested, e.g. a base schema, shared reference data and the fixtures of a single test class.
+ *
+ * <p>Example of use:
+ * <pre> {@code
+ *     DatabasePreparer schema = FlywayPreparer.forClasspathLocation("db/migration");
+ *     DatabasePreparer orders = LayeredPreparer.of(schema, new OrderFixtures());
+ * }</pre>
+ */
+public final class LayeredPreparer implements CacheableDatabasePreparer {
+
+    private final DatabasePreparer parent;
+    private final DatabasePreparer child;
+
+    public static LayeredPreparer of(DatabasePreparer parent, DatabasePreparer child) {
+        return new LayeredPreparer(Objects.requireNonNull(parent, "parent"), Objects.requireNonNull(child, "child"));
+    }
+
+    private LayeredPreparer(DatabasePreparer parent, DatabasePreparer child) {
+        this.parent = parent;
+        this.child = child;
+    }
+
+    public DatabasePreparer getParent() {
+        return parent;
+    }
+
+    public DatabasePreparer getChild() {
+        return child;
+    }
+
+    /**
+     * Applies both layers to the same database, used when the layers are not prepared separately.
+     */
+    @Override
+    public void prepare(DataSource ds) throws SQLException {
+        parent.prepare(ds);
+        child.prepare(ds);
+    }
+
+    /**
+     * Combines the keys of both layers, the result can only be cached if both layers can.
+     */
+    @Override
+    public String getCacheKey() throws IOException {
+        String parentKey = parent instanceof CacheableDatabasePreparer ? ((CacheableDatabasePreparer) parent).getCacheKey() : null;
+        String childKey = child instanceof CacheableDatabasePreparer ? ((CacheableDatabasePreparer) child).getCacheKey() : null;
+        if (parentKey == null || childKey == null) {
+            return null;
+        }
+        return new ResourceDigest().update(parentKey).update(childKey).toHex();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        LayeredPreparer that = (LayeredPreparer) o;
+        return Objects.equals(parent, that.parent) && Objects.equals(child, that.child);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(parent, child);
+    }
+
+    @Override
+    public String toString() {
+        return parent + " > " + child;
+    }
+}
@@ -15,25 +15,42 @@ package io.zonky.test.db.postgres.embedded;
 
 import liquibase.Contexts;
 import liquibase.Liquibase;
+import liquibase.changelog.ChangeLogParameters;
+import liquibase.changelog.ChangeSet;
+import liquibase.changelog.DatabaseChangeLog;
 import liquibase.database.Database;
 import liquibase.database.jvm.JdbcConnection;
 import liquibase.exception.LiquibaseException;
+import liquibase.parser.ChangeLogParserFactory;
 import liquibase.resource.ClassLoaderResourceAccessor;
 import liquibase.resource.FileSystemResourceAccessor;
 import liquibase.resource.ResourceAccessor;
 
 import javax.sql.DataSource;
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.Objects;
+import java.util.TreeSet;
 
 import static liquibase.database.DatabaseFactory.getInstance;
 
-public final class LiquibasePreparer implements DatabasePreparer {
+/**
+ * Applies a Liquibase changelog from the classpath or the file system.
+ *
+ * <p>
+ * The prepared template can be cached, see {@link #getCacheKey()}. The cache key covers the directory containing
+ * the changelog, so changelogs including files from outside of it are not cached. Other files referenced by the changesets,
+ * e.g. by {@code sqlFile} or {@code loadData}, are only covered if they are in that directory as well.
+ */
+public final class LiquibasePreparer implements CacheableDatabasePreparer {
 
     private final String location;
     private final ResourceAccessor accessor;
+    private final File directory;
     private final Contexts contexts;
 
     public static LiquibasePreparer forClasspathLocation(String location) {
@@ -41,7 +58,7 @@ public final class LiquibasePreparer implements DatabasePreparer {
     }
 
     public static LiquibasePreparer forClasspathLocation(String location, Contexts contexts) {
-        return new LiquibasePreparer(location, new ClassLoaderResourceAccessor(), contexts);
+        return new LiquibasePreparer(location, new ClassLoaderResourceAccessor(), null, contexts);
     }
     
     public static LiquibasePreparer forFile(File file) {
@@ -55,12 +72,13 @@ public final class LiquibasePreparer implements DatabasePreparer {
         if (dir == null)
             throw new IllegalArgumentException("Cannot get parent dir from file");
 
-        return new LiquibasePreparer(file.getName(), new FileSystemResourceAccessor(dir), contexts);
+        return new LiquibasePreparer(file.getName(), new FileSystemResourceAccessor(dir), dir, contexts);
     }
 
-    private LiquibasePreparer(String location, ResourceAccessor accessor, Contexts contexts) {
+    private LiquibasePreparer(String location, ResourceAccessor accessor, File directory, Contexts contexts) {
         this.location = location;
         this.accessor = accessor;
+        this.directory = directory;
         this.contexts = contexts != null ? contexts : new Contexts();
     }
 
@@ -75,6 +93,57 @@ public final class LiquibasePreparer implements DatabasePreparer {
         }
     }
 
+    /**
+     * Returns a hash of the contexts and the content of the directory containing the changelog, including its subdirectories.
+     * Changelogs directly in the root of the classpath are not cached, as the whole classpath would have to be hashed,
+     * neither are changelogs that include changesets from files outside of the directory.
+     */
+    @Override
+    public String getCacheKey() throws IOException {
+        ResourceDigest digest = new ResourceDigest()
+                .update(location)
+                .update(String.valueOf(new TreeSet<>(contexts.getContexts())));
+        boolean hashed;
+        if (directory != null) {
+            hashed = digest.updateDirectory(directory.toPath())
+                    && includesOnlyFilesIn(directory.toPath().toAbsolutePath().normalize());
+        } else {
+            ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+            int separator = location.lastIndexOf('/');
+            hashed = separator > 0
+                    && digest.updateClasspath(classLoader != null ? classLoader : LiquibasePreparer.class.getClassLoader(),
+                    location.substring(0, separator))
+                    && includesOnlyFilesIn(Paths.get(location.substring(0, separator)));
+        }
+        return hashed ? digest.toHex() : null;
+    }
+
+    /**
+     * Parses the changelog and checks that all its changesets, including the included ones, come from files in the directory.
+     */
+    private boolean includesOnlyFilesIn(Path changeLogDirectory) throws IOException {
+        DatabaseChangeLog changeLog;
+        try {
+            changeLog = ChangeLogParserFactory.getInstance().getParser(location, accessor)
+                    .parse(location, new ChangeLogParameters(), accessor);
+        } catch (LiquibaseException e) {
+            throw new IOException("Could not parse changelog " + location, e);
+        }
+        for (ChangeSet changeSet : changeLog.getChangeSets()) {
+            String filePath = changeSet.getFilePath().replace('\\', '/');
+            if (filePath.startsWith("classpath:")) {
+                filePath = filePath.substring("classpath:".length());
+            }
+            Path path = directory != null
+                    ? changeLogDirectory.resolve(filePath).normalize()
+                    : Paths.get(filePath.startsWith("/") ? filePath.substring(1) : filePath).normalize();
+            if (!path.startsWith(changeLogDirectory)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -0,0 +1,201 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.zonky.test.db.postgres.embedded;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tracks the tables modified in a database, so that their original data can be restored, see {@link ReleaseStrategy#RESET}.
+ *
+ * <p>
+ * It is installed as the last layer of a template: every table gets a statement-level trigger that records
+ * the table when it is written to, the original rows of non-empty tables are copied into the {@code epg_reset} schema
+ * along with the state of all sequences, and an event trigger records any change of the schema.
+ * A reset truncates the modified tables, together with the tables referencing them, and copies their rows back.
+ */
+final class ModificationTracker implements CacheableDatabasePreparer {
+
+    static final ModificationTracker INSTANCE = new ModificationTracker();
+
+    private static final String SCHEMA = "epg_reset";
+    // recorded instead of a table when the schema changes
+    private static final int SCHEMA_CHANGED = 0;
+    private static final int GENERATED_COLUMNS_MIN_VERSION = 120000;
+    private static final int IDENTITY_COLUMNS_MIN_VERSION = 100000;
+
+    private static final String USER_RELATIONS = "SELECT c.oid, format('%I.%I', n.nspname, c.relname), c.relkind " +
+            "FROM pg_class c JOIN pg_namespace n ON n.oid = c.relnamespace " +
+            "WHERE c.relkind IN ('r', 'p', 'S') AND c.relpersistence <> 't' " +
+            "AND n.nspname NOT IN ('pg_catalog', 'information_schema', '" + SCHEMA + "') AND n.nspname NOT LIKE 'pg\\_toast%'";
+
+    // the modified tables, their partitions and the tables referencing any of them
+    private static final String TABLES_TO_RESTORE = "WITH RECURSIVE affected(relid) AS (" +
+            "SELECT relid FROM " + SCHEMA + ".modified " +
+            "UNION SELECT r.relid FROM affected a CROSS JOIN LATERAL (" +
+            "SELECT inhrelid FROM pg_inherits WHERE inhparent = a.relid " +
+            "UNION ALL SELECT conrelid FROM pg_constraint WHERE contype = 'f' AND confrelid = a.relid) r(relid)) " +
+            "SELECT s.relid::regclass::text, s.snapshot, s.columns FROM affected a JOIN " + SCHEMA + ".snapshots s ON s.relid = a.relid";
+
+    private ModificationTracker() {}
+
+    @Override
+    public void prepare(DataSource ds) throws SQLException {
+        try (Connection c = ds.getConnection();
+             Statement stmt = c.createStatement()) {
+            final int serverVersion = getServerVersion(stmt);
+            stmt.execute("CREATE SCHEMA " + SCHEMA);
+            stmt.execute("CREATE TABLE " + SCHEMA + ".modified (relid oid PRIMARY KEY)");
+            stmt.execute("CREATE TABLE " + SCHEMA + ".snapshots (relid oid PRIMARY KEY, snapshot text, columns text NOT NULL)");
+            stmt.execute("CREATE TABLE " + SCHEMA + ".sequences (seqid oid PRIMARY KEY, last_value bigint NOT NULL, is_called boolean NOT NULL)");
+            stmt.execute("CREATE FUNCTION " + SCHEMA + ".track() RETURNS trigger LANGUAGE plpgsql AS $$ BEGIN " +
+                    "INSERT INTO " + SCHEMA + ".modified VALUES (TG_RELID) ON CONFLICT DO NOTHING; RETURN NULL; END $$");
+            stmt.execute("CREATE FUNCTION " + SCHEMA + ".track_schema() RETURNS event_trigger LANGUAGE plpgsql AS $$ BEGIN " +
+                    "INSERT INTO " + SCHEMA + ".modified VALUES (" + SCHEMA_CHANGED + ") ON CONFLICT DO NOTHING; END $$");
+
+            final List<String[]> relations = new ArrayList<>();
+            try (ResultSet rs = stmt.executeQuery(USER_RELATIONS)) {
+                while (rs.next()) {
+                    relations.add(new String[] { rs.getString(1), rs.getString(2), rs.getString(3) });
+                }
+            }
+            for (String[] relation : relations) {
+                final String oid = relation[0];
+                final String name = relation[1];
+                if ("S".equals(relation[2])) {
+                    stmt.execute(String.format("INSERT INTO %s.sequences SELECT %s, last_value, is_called FROM %s", SCHEMA, oid, name));
+                    continue;
+                }
+                stmt.execute(String.format("CREATE TRIGGER epg_reset_track AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON %s " +
+                        "FOR EACH STATEMENT EXECUTE PROCEDURE %s.track()", name, SCHEMA));
+                if ("r".equals(relation[2])) {
+                    snapshot(c, stmt, oid, name, serverVersion);
+                }
+            }
+
+            stmt.execute("CREATE EVENT TRIGGER epg_reset_track_schema ON ddl_command_end EXECUTE PROCEDURE " + SCHEMA + ".track_schema()");
+        }
+    }
+
+    private static void snapshot(Connection c, Statement stmt, String oid, String name, int serverVersion) throws SQLException {
+        String columns = null;
+        try (PreparedStatement columnsStmt = c.prepareStatement("SELECT string_agg(quote_ident(attname), ', ' ORDER BY attnum) " +
+                "FROM pg_attribute WHERE attrelid = ?::oid AND attnum > 0 AND NOT attisdropped" +
+                (serverVersion >= GENERATED_COLUMNS_MIN_VERSION ? " AND attgenerated = ''" : ""))) {
+            columnsStmt.setString(1, oid);
+            try (ResultSet rs = columnsStmt.executeQuery()) {
+                if (rs.next()) {
+                    columns = rs.getString(1);
+                }
+            }
+        }
+        if (columns == null) {
+            return;
+        }
+        // empty tables only need to be truncated
+        String snapshot = null;
+        try (ResultSet rs = stmt.executeQuery(String.format("SELECT 1 FROM %s LIMIT 1", name))) {
+            if (rs.next()) {
+                snapshot = "s" + oid;
+            }
+        }
+        if (snapshot != null) {
+            stmt.execute(String.format("CREATE TABLE %s.%s AS SELECT %s FROM %s", SCHEMA, snapshot, columns, name));
+        }
+        try (PreparedStatement insert = c.prepareStatement("INSERT INTO " + SCHEMA + ".snapshots VALUES (?::oid, ?, ?)")) {
+            insert.setString(1, oid);
+            insert.setString(2, snapshot);
+            insert.setString(3, columns);
+            insert.execute();
+        }
+    }
+
+    /**
+     * Restores the original data of the modified tables and of all sequences.
+     * Other connections to the database are terminated first.
+     *
+     * @return false if the schema of the database has changed, so the database cannot be reset
+     */
+    static boolean reset(DataSource ds) throws SQLException {
+        try (Connection c = ds.getConnection();
+             Statement stmt = c.createStatement()) {
+            stmt.execute("SELECT pg_terminate_backend(pid) FROM pg_stat_activity WHERE datname = current_database() AND pid <> pg_backend_pid()");
+            final int serverVersion = getServerVersion(stmt);
+            c.setAutoCommit(false);
+            try {
+                try (ResultSet rs = stmt.executeQuery("SELECT 1 FROM " + SCHEMA + ".modified WHERE relid = " + SCHEMA_CHANGED)) {
+                    if (rs.next()) {
+                        c.rollback();
+                        return false;
+                    }
+                }
+                // the restored rows are neither tracked nor checked by foreign keys
+                stmt.execute("SET LOCAL session_replication_role = replica");
+
+                final List<String[]> tables = new ArrayList<>();
+                try (ResultSet rs = stmt.executeQuery(TABLES_TO_RESTORE)) {
+                    while (rs.next()) {
+                        tables.add(new String[] { rs.getString(1), rs.getString(2), rs.getString(3) });
+                    }
+                }
+                if (!tables.isEmpty()) {
+                    final List<String> names = new ArrayList<>(tables.size());
+                    tables.forEach(table -> names.add(table[0]));
+                    stmt.execute("TRUNCATE " + String.join(", ", names));
+                    for (String[] table : tables) {
+                        if (table[1] != null) {
+                            stmt.execute(String.format("INSERT INTO %s (%s)%s SELECT %s FROM %s.%s", table[0], table[2],
+                                    serverVersion >= IDENTITY_COLUMNS_MIN_VERSION ? " OVERRIDING SYSTEM VALUE" : "", table[2], SCHEMA, table[1]));
+                        }
+                    }
+                }
+                stmt.execute("SELECT setval(seqid, last_value, is_called) FROM " + SCHEMA + ".sequences");
+                stmt.execute("DELETE FROM " + SCHEMA + ".modified");
+                c.commit();
+                return true;
+            } catch (SQLException | RuntimeException e) {
+                c.rollback();
+                throw e;
+            }
+        }
+    }
+
+    private static int getServerVersion(Statement stmt) throws SQLException {
+        try (ResultSet rs = stmt.executeQuery("SHOW server_version_num")) {
+            if (!rs.next()) {
+                throw new SQLException("Could not determine the server version");
+            }
+            return Integer.parseInt(rs.getString(1));
+        }
+    }
+
+    /**
+     * The tracking does not depend on the content of the database, so the key only changes with its implementation.
+     */
+    @Override
+    public String getCacheKey() {
+        return "modification-tracker-1";
+    }
+
+    @Override
+    public String toString() {
+        return "ModificationTracker";
+    }
+}
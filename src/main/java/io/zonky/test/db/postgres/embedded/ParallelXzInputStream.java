@@ -0,0 +1,172 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.zonky.test.db.postgres.embedded;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.tukaani.xz.SeekableFileInputStream;
+import org.tukaani.xz.SeekableXZInputStream;
+import org.tukaani.xz.XZInputStream;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Decompresses a multi-block XZ file by decoding its blocks independently on a fork-join pool.
+ * The block boundaries are taken from the index at the end of the file and the decoded blocks
+ * are handed out in their original order, so the stream can be consumed like any other {@link InputStream}.
+ *
+ * <p>
+ * At most one block per worker thread is decoded ahead of the reader, which keeps the memory usage bounded
+ * by the size of the largest block times the parallelism.
+ */
+final class ParallelXzInputStream extends InputStream {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ParallelXzInputStream.class);
+
+    private static final long MAX_BLOCK_SIZE = 64L * 1024 * 1024;
+
+    private final File archive;
+    private final int blockCount;
+    private final ForkJoinPool pool;
+    private final Deque<Future<byte[]>> pendingBlocks = new ArrayDeque<>();
+
+    private int nextBlock;
+    private byte[] currentBlock = new byte[0];
+    private int position;
+
+    private ParallelXzInputStream(File archive, int blockCount, int parallelism) {
+        this.archive = archive;
+        this.blockCount = blockCount;
+        this.pool = new ForkJoinPool(parallelism);
+
+        for (int i = 0; i < parallelism; i++) {
+            submitNextBlock();
+        }
+    }
+
+    /**
+     * Opens the given XZ file for reading. Files consisting of a single block (or blocks too big to be held
+     * in memory) are decompressed on the calling thread the same way as by {@link XZInputStream}.
+     *
+     * @param archive     The XZ compressed file.
+     * @param parallelism The maximum number of blocks decoded at the same time.
+     * @return A stream with the decompressed content.
+     */
+    static InputStream open(File archive, int parallelism) throws IOException {
+        final int blockCount;
+        final long largestBlockSize;
+        try (SeekableXZInputStream xzIn = new SeekableXZInputStream(new SeekableFileInputStream(archive))) {
+            blockCount = xzIn.getBlockCount();
+            largestBlockSize = xzIn.getLargestBlockSize();
+        }
+
+        if (blockCount < 2 || parallelism < 2 || largestBlockSize > MAX_BLOCK_SIZE) {
+            LOG.debug("Decompressing {} ({} blocks) on a single thread", archive, blockCount);
+            return new XZInputStream(new BufferedInputStream(new FileInputStream(archive)));
+        }
+
+        LOG.debug("Decompressing {} ({} blocks) using {} threads", archive, blockCount, parallelism);
+        return new ParallelXzInputStream(archive, blockCount, Math.min(parallelism, blockCount));
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fillCurrentBlock()) {
+            return -1;
+        }
+        return currentBlock[position++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (!fillCurrentBlock()) {
+            return -1;
+        }
+        final int count = Math.min(length, currentBlock.length - position);
+        System.arraycopy(currentBlock, position, buffer, offset, count);
+        position += count;
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return currentBlock.length - position;
+    }
+
+    @Override
+    public void close() {
+        for (Future<byte[]> block : pendingBlocks) {
+            block.cancel(true);
+        }
+        pendingBlocks.clear();
+        pool.shutdownNow();
+    }
+
+    private boolean fillCurrentBlock() throws IOException {
+        while (position == currentBlock.length) {
+            final Future<byte[]> block = pendingBlocks.poll();
+            if (block == null) {
+                return false;
+            }
+            submitNextBlock();
+            currentBlock = awaitBlock(block);
+            position = 0;
+        }
+        return true;
+    }
+
+    private void submitNextBlock() {
+        if (nextBlock < blockCount) {
+            final int blockNumber = nextBlock++;
+            pendingBlocks.add(pool.submit(() -> decodeBlock(blockNumber)));
+        }
+    }
+
+    private byte[] decodeBlock(int blockNumber) throws IOException {
+        try (SeekableXZInputStream xzIn = new SeekableXZInputStream(new SeekableFileInputStream(archive))) {
+            xzIn.seekToBlock(blockNumber);
+            final byte[] content = new byte[(int) xzIn.getBlockSize(blockNumber)];
+            IOUtils.readFully(xzIn, content);
+            return content;
+        }
+    }
+
+    private static byte[] awaitBlock(Future<byte[]> block) throws IOException {
+        try {
+            return block.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while decompressing");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Could not decompress block", e.getCause());
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.zonky.test.db.postgres.embedded;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Properties;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * An on-disk index in the working directory that maps the cache keys of postgres binaries
+ * (see {@link PgBinaryResolver#getPgBinaryCacheKey(String, String)}) to the directories they were extracted to.
+ *
+ * <p>
+ * The index file is always replaced atomically, so it can be read without any locking.
+ * Updates are serialized between JVMs by a lock on a separate file.
+ */
+final class PgBinariesIndex {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PgBinariesIndex.class);
+
+    private static final String INDEX_FILE_NAME = "pg-binaries.index";
+    private static final String INDEX_LOCK_FILE_NAME = "pg-binaries.index.lock";
+
+    private PgBinariesIndex() {}
+
+    /**
+     * Returns the directory with the extracted binaries for the given key, or {@code null} if the key is unknown.
+     * The returned directory may no longer exist, the caller is responsible for verifying its content.
+     */
+    static File lookup(File workingDirectory, String cacheKey) {
+        try {
+            final String directoryName = load(indexFile(workingDirectory)).getProperty(cacheKey);
+            return directoryName != null ? new File(workingDirectory, directoryName) : null;
+        } catch (IOException e) {
+            LOG.warn("Could not read the index of postgres binaries in {}", workingDirectory, e);
+            return null;
+        }
+    }
+
+    static void store(File workingDirectory, String cacheKey, File pgDir) {
+        final Path indexFile = indexFile(workingDirectory);
+        final Path lockFile = workingDirectory.toPath().resolve(INDEX_LOCK_FILE_NAME);
+
+        try (FileChannel lockChannel = FileChannel.open(lockFile, CREATE, WRITE);
+             FileLock ignored = lockChannel.lock()) {
+            final Properties index = load(indexFile);
+            if (pgDir.getName().equals(index.getProperty(cacheKey))) {
+                return;
+            }
+            index.setProperty(cacheKey, pgDir.getName());
+
+            final Path tempFile = Files.createTempFile(workingDirectory.toPath(), INDEX_FILE_NAME, ".tmp");
+            try {
+                try (OutputStream out = Files.newOutputStream(tempFile)) {
+                    index.store(out, "Extracted postgres binaries");
+                }
+                try {
+                    Files.move(tempFile, indexFile, ATOMIC_MOVE, REPLACE_EXISTING);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(tempFile, indexFile, REPLACE_EXISTING);
+                }
+            } finally {
+                Files.deleteIfExists(tempFile);
+            }
+        } catch (IOException e) {
+            LOG.warn("Could not update the index of postgres binaries in {}", workingDirectory, e);
+        }
+    }
+
+    private static Path indexFile(File workingDirectory) {
+        return workingDirectory.toPath().resolve(INDEX_FILE_NAME);
+    }
+
+    private static Properties load(Path indexFile) throws IOException {
+        final Properties index = new Properties();
+        try (InputStream in = Files.newInputStream(indexFile)) {
+            index.load(in);
+        } catch (NoSuchFileException e) {
+            LOG.trace("The index of postgres binaries has not been created yet", e);
+        }
+        return index;
+    }
+}
@@ -32,4 +32,17 @@ public interface PgBinaryResolver {
      * @return the binary
      */
     InputStream getPgBinary(String system, String machineHardware) throws IOException;
+
+    /**
+     * Returns a key identifying the binary that would be returned by {@link #getPgBinary(String, String)},
+     * without reading the binary itself. The key must change whenever the content of the binary changes.
+     * If a key is available, the location of the extracted binaries is remembered in the working directory
+     * and subsequent JVMs do not need to read and hash the whole archive again.
+     * @param system a system identification (Darwin, Linux...)
+     * @param machineHardware a machine hardware architecture (x86_64...)
+     * @return the key, or {@code null} if the binary cannot be identified without reading it
+     */
+    default String getPgBinaryCacheKey(String system, String machineHardware) throws IOException {
+        return null;
+    }
 }
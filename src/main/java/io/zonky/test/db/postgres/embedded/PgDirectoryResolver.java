@@ -0,0 +1,37 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.zonky.test.db.postgres.embedded;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A strategy for resolving an already installed PostgreSQL distribution.
+ * Unlike {@link PgBinaryResolver}, the binaries are used in place, no archive is read or extracted.
+ *
+ * @see EmbeddedPostgres.Builder#setPgDirectoryResolver(PgDirectoryResolver)
+ * @see SystemPostgresDirectoryResolver
+ */
+public interface PgDirectoryResolver {
+
+    /**
+     * Returns the installation directory of postgres for the given system and hardware architecture.
+     * The directory must contain the {@code bin/initdb}, {@code bin/pg_ctl} and {@code bin/postgres} executables.
+     * @param system a system identification (Darwin, Linux...)
+     * @param machineHardware a machine hardware architecture (x86_64...)
+     * @return the installation directory, or {@code null} to fall back to the configured {@link PgBinaryResolver}
+     */
+    File getPgDirectory(String system, String machineHardware) throws IOException;
+}
@@ -0,0 +1,156 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.zonky.test.db.postgres.embedded;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Allocates ports for embedded clusters so that parallel JVMs on the same host never hand out the same port.
+ *
+ * <p>
+ * A free port is found by binding an ephemeral port, which is then reserved by locking a file named after the port
+ * in the working directory. The lock is held until the cluster is closed, so no other JVM can pick the port while
+ * the postmaster is starting. The modification time of a lock file records when the port was last released,
+ * recently released ports are skipped, so that connections left in the TIME_WAIT state cannot interfere.
+ */
+final class PortAllocator {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PortAllocator.class);
+
+    private static final String PORTS_DIRECTORY_NAME = "ports";
+    // covers the TIME_WAIT interval of common operating systems
+    private static final long RELEASED_PORT_QUARANTINE_MS = 60_000;
+    private static final int MAX_CANDIDATES = 100;
+
+    private static final Map<File, PortAllocator> ALLOCATORS = new ConcurrentHashMap<>();
+
+    private final File portsDirectory;
+
+    private PortAllocator(File portsDirectory) {
+        this.portsDirectory = portsDirectory;
+    }
+
+    /**
+     * Returns the allocator sharing its reservations through the given working directory.
+     */
+    static PortAllocator forWorkingDirectory(File workingDirectory) {
+        return ALLOCATORS.computeIfAbsent(workingDirectory.getAbsoluteFile(), dir -> new PortAllocator(new File(dir, PORTS_DIRECTORY_NAME)));
+    }
+
+    /**
+     * Reserves a free port, the reservation must be closed once the port is not used anymore.
+     */
+    Reservation reserve() throws IOException {
+        if (!portsDirectory.isDirectory() && !portsDirectory.mkdirs() && !portsDirectory.isDirectory()) {
+            throw new IOException("Could not create directory " + portsDirectory);
+        }
+        for (int i = 0; i < MAX_CANDIDATES; i++) {
+            final Reservation reservation = tryReserve(findFreePort());
+            if (reservation != null) {
+                return reservation;
+            }
+        }
+        throw new IOException("Could not reserve a free port after " + MAX_CANDIDATES + " attempts, see " + portsDirectory);
+    }
+
+    Reservation tryReserve(int port) throws IOException {
+        final File lockFile = new File(portsDirectory, port + ".lock");
+        final long lastReleased = lockFile.lastModified();
+        if (isRecentlyReleased(lastReleased)) {
+            LOG.trace("Port {} was used recently, skipping it", port);
+            return null;
+        }
+        final FileChannel channel = FileChannel.open(lockFile.toPath(), CREATE, WRITE);
+        try {
+            final FileLock lock = channel.tryLock();
+            // the port could have been released by another JVM in the meantime
+            if (lock != null && (lastReleased == 0 || lockFile.lastModified() == lastReleased)) {
+                lockFile.setLastModified(System.currentTimeMillis());
+                return new Reservation(port, lockFile, channel);
+            }
+            LOG.trace("Port {} is reserved by another process", port);
+        } catch (OverlappingFileLockException e) {
+            LOG.trace("Port {} is reserved by this process", port);
+        }
+        channel.close();
+        return null;
+    }
+
+    private static boolean isRecentlyReleased(long lastReleased) {
+        return lastReleased != 0 && System.currentTimeMillis() - lastReleased < RELEASED_PORT_QUARANTINE_MS;
+    }
+
+    private static int findFreePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /**
+     * Returns whether the given port is currently bound by any process.
+     */
+    static boolean isPortInUse(int port) {
+        try (ServerSocket ignored = new ServerSocket(port)) {
+            return false;
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    /**
+     * A port reserved for a single cluster.
+     */
+    static final class Reservation implements Closeable {
+
+        private final int port;
+        private final File lockFile;
+        private final FileChannel channel;
+
+        private Reservation(int port, File lockFile, FileChannel channel) {
+            this.port = port;
+            this.lockFile = lockFile;
+            this.channel = channel;
+        }
+
+        int getPort() {
+            return port;
+        }
+
+        /**
+         * Releases the port, it will not be handed out again until its quarantine elapses.
+         */
+        @Override
+        public void close() throws IOException {
+            if (channel.isOpen()) {
+                lockFile.setLastModified(System.currentTimeMillis());
+                // closing the channel releases the lock
+                channel.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.zonky.test.db.postgres.embedded;
+
+import java.util.Objects;
+
+/**
+ * Controls how many databases {@link PreparedDbProvider} creates ahead of demand.
+ *
+ * <p>
+ * The producers keep creating databases until the number of ready databases reaches the high watermark,
+ * then they pause until it drops to the low watermark. The high watermark is therefore the depth of the queue.
+ */
+public final class PrefetchConfig {
+
+    private static final PrefetchConfig DEFAULT = new PrefetchConfig(1, 1, 0);
+
+    private final int producers;
+    private final int highWatermark;
+    private final int lowWatermark;
+
+    private PrefetchConfig(int producers, int highWatermark, int lowWatermark) {
+        this.producers = producers;
+        this.highWatermark = highWatermark;
+        this.lowWatermark = lowWatermark;
+    }
+
+    /**
+     * A single producer keeping one database ready. Suites that consume databases faster than they are created
+     * can prefetch more of them with {@link #of(int, int, int)}.
+     */
+    public static PrefetchConfig defaults() {
+        return DEFAULT;
+    }
+
+    /**
+     * @param producers the number of threads creating databases in parallel
+     * @param highWatermark the maximum number of databases created ahead of demand
+     * @param lowWatermark the number of ready databases at which the producers resume, must be lower than the high watermark
+     */
+    public static PrefetchConfig of(int producers, int highWatermark, int lowWatermark) {
+        if (producers < 1) {
+            throw new IllegalArgumentException("At least one producer is required");
+        }
+        if (highWatermark < 1) {
+            throw new IllegalArgumentException("The high watermark must be positive");
+        }
+        if (lowWatermark < 0 || lowWatermark >= highWatermark) {
+            throw new IllegalArgumentException("The low watermark must be between zero and the high watermark");
+        }
+        return new PrefetchConfig(producers, highWatermark, lowWatermark);
+    }
+
+    public int getProducers() {
+        return producers;
+    }
+
+    public int getHighWatermark() {
+        return highWatermark;
+    }
+
+    public int getLowWatermark() {
+        return lowWatermark;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        PrefetchConfig that = (PrefetchConfig) o;
+        return producers == that.producers &&
+                highWatermark == that.highWatermark &&
+                lowWatermark == that.lowWatermark;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(producers, highWatermark, lowWatermark);
+    }
+
+    @Override
+    public String toString() {
+        return "PrefetchConfig{producers=" + producers + ", highWatermark=" + highWatermark + ", lowWatermark=" + lowWatermark + "}";
+    }
+}
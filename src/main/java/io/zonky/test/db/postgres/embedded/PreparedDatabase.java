@@ -0,0 +1,56 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.zonky.test.db.postgres.embedded;
+
+import javax.sql.DataSource;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A database leased from {@link PreparedDbProvider#leaseDatabase()}.
+ *
+ * <p>
+ * Closing the lease returns the database to the provider, which drops it in the background.
+ * Connections that are still open are terminated, so the database must not be used afterwards.
+ */
+public final class PreparedDatabase implements AutoCloseable {
+
+    private final PreparedDbProvider provider;
+    private final ConnectionInfo connectionInfo;
+    private final DataSource dataSource;
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    PreparedDatabase(PreparedDbProvider provider, ConnectionInfo connectionInfo, DataSource dataSource) {
+        this.provider = provider;
+        this.connectionInfo = connectionInfo;
+        this.dataSource = dataSource;
+    }
+
+    public ConnectionInfo getConnectionInfo() {
+        return connectionInfo;
+    }
+
+    public DataSource getDataSource() {
+        return dataSource;
+    }
+
+    /**
+     * Returns the database to the provider, subsequent calls have no effect.
+     */
+    @Override
+    public void close() {
+        if (released.compareAndSet(false, true)) {
+            provider.release(this);
+        }
+    }
+}
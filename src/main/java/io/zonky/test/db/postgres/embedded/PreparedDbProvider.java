@@ -14,24 +14,37 @@
 package io.zonky.test.db.postgres.embedded;
 
 import io.zonky.test.db.postgres.embedded.EmbeddedPostgres.Builder;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.lang3.RandomStringUtils;
 import org.postgresql.ds.PGSimpleDataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import javax.sql.DataSource;
+import java.io.File;
 import java.io.IOException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
@@ -40,14 +53,37 @@ import static java.util.Collections.unmodifiableMap;
 
 public class PreparedDbProvider
 {
+    private static final Logger LOG = LoggerFactory.getLogger(PreparedDbProvider.class);
+
     private static final String JDBC_FORMAT = "jdbc:postgresql://localhost:%d/%s?user=%s";
+    private static final String TEMPLATE_DATABASE_PREFIX = "template_";
+    private static final int CREATE_DATABASE_STRATEGY_MIN_VERSION = 150000;
+    private static final int CREATE_DATABASE_STRATEGY_SAMPLES = 3;
+    private static final int DROP_DATABASE_FORCE_MIN_VERSION = 130000;
+    private static final int MAX_DROP_BATCH_SIZE = 32;
+
+    /**
+     * Clusters are shared by all preparers with the same configuration of the cluster.
+     */
+    // @GuardedBy("PreparedDbProvider.class")
+    private static final Map<Builder, CompletableFuture<EmbeddedPostgres>> CLUSTERS = new HashMap<>();
 
     /**
-     * Each database cluster's <code>template1</code> database has a unique set of schema
-     * loaded so that the databases may be cloned.
+     * Each preparer loads its schema into its own template database in the cluster, so that the databases may be cloned.
      */
     // @GuardedBy("PreparedDbProvider.class")
-    private static final Map<ClusterKey, PrepPipeline> CLUSTERS = new HashMap<>();
+    private static final Map<TemplateKey, CompletableFuture<Template>> TEMPLATES = new HashMap<>();
+
+    // @GuardedBy("PreparedDbProvider.class")
+    private static final Map<PipelineKey, CompletableFuture<PrepPipeline>> PIPELINES = new HashMap<>();
+
+    private static final AtomicInteger STARTER_THREAD_COUNTER = new AtomicInteger();
+    private static final ExecutorService CLUSTER_STARTER = Executors.newCachedThreadPool(r -> {
+        final Thread t = new Thread(r);
+        t.setDaemon(true);
+        t.setName("cluster-starter-" + STARTER_THREAD_COUNTER.incrementAndGet());
+        return t;
+    });
 
     private final PrepPipeline dbPreparer;
 
@@ -56,37 +92,283 @@ public class PreparedDbProvider
     }
 
     public static PreparedDbProvider forPreparer(DatabasePreparer preparer, Iterable<Consumer<Builder>> customizers) {
-        return new PreparedDbProvider(preparer, customizers);
+        return forPreparer(preparer, customizers, PrefetchConfig.defaults());
+    }
+
+    /**
+     * Databases with a different prefetch configuration are prepared by separate pipelines.
+     */
+    public static PreparedDbProvider forPreparer(DatabasePreparer preparer, Iterable<Consumer<Builder>> customizers, PrefetchConfig prefetch) {
+        return forPreparer(preparer, customizers, prefetch, ReleaseStrategy.DROP);
+    }
+
+    /**
+     * Databases with a different prefetch configuration or release strategy are prepared by separate pipelines.
+     */
+    public static PreparedDbProvider forPreparer(DatabasePreparer preparer, Iterable<Consumer<Builder>> customizers, PrefetchConfig prefetch,
+                                                 ReleaseStrategy releaseStrategy) {
+        return new PreparedDbProvider(preparer, customizers, Objects.requireNonNull(prefetch), Objects.requireNonNull(releaseStrategy));
     }
 
-    private PreparedDbProvider(DatabasePreparer preparer, Iterable<Consumer<Builder>> customizers) {
+    private PreparedDbProvider(DatabasePreparer preparer, Iterable<Consumer<Builder>> customizers, PrefetchConfig prefetch,
+                               ReleaseStrategy releaseStrategy) {
         try {
-            dbPreparer = createOrFindPreparer(preparer, customizers);
-        } catch (final IOException | SQLException e) {
-            throw new RuntimeException(e);
+            dbPreparer = createOrFindPreparer(preparer, customizers, prefetch, releaseStrategy).join();
+        } catch (final CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
         }
     }
 
     /**
-     * Each schema set has its own database cluster.  The template1 database has the schema preloaded so that
-     * each test case need only create a new database and not re-invoke your preparer.
+     * Each schema set has its own pipeline, which clones the databases from the template of the preparer.
+     * Databases that are reset once released are cloned from a layer on top of the template that tracks their modifications.
      */
-    private static synchronized PrepPipeline createOrFindPreparer(DatabasePreparer preparer, Iterable<Consumer<Builder>> customizers) throws IOException, SQLException
+    private static synchronized CompletableFuture<PrepPipeline> createOrFindPreparer(DatabasePreparer preparer, Iterable<Consumer<Builder>> customizers,
+                                                                                     PrefetchConfig prefetch, ReleaseStrategy releaseStrategy)
     {
-        final ClusterKey key = new ClusterKey(preparer, customizers);
-        PrepPipeline result = CLUSTERS.get(key);
-        if (result != null) {
-            return result;
+        final Builder builder = newBuilder(customizers);
+        final PipelineKey key = new PipelineKey(preparer, builder, prefetch, releaseStrategy);
+        final CompletableFuture<PrepPipeline> existing = PIPELINES.get(key);
+        if (existing != null) {
+            return existing;
         }
 
+        final CreateDatabaseStrategy strategy = builder.getCreateDatabaseStrategy();
+        final DatabasePreparer templatePreparer = releaseStrategy == ReleaseStrategy.RESET
+                ? LayeredPreparer.of(preparer, ModificationTracker.INSTANCE) : preparer;
+        final CompletableFuture<PrepPipeline> result = createOrFindTemplate(templatePreparer, builder, customizers)
+                .thenApplyAsync(template -> startPipeline(template, prefetch, strategy, releaseStrategy), CLUSTER_STARTER);
+        PIPELINES.put(key, result);
+        result.whenComplete((pipeline, e) -> {
+            if (e != null) {
+                removePipeline(key, result);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Each schema set has its own template database, marked with IS_TEMPLATE, in a cluster shared by all preparers
+     * with the same cluster configuration. The template has the schema preloaded so that each test case need only
+     * create a new database and not re-invoke your preparer. The template of a layered preparer is a clone
+     * of the template of its parent with the child applied on top, so each layer is prepared only once.
+     * The clusters start and the templates are prepared outside of the lock, so that they can proceed in parallel,
+     * while concurrent requests for the same cluster or template share it. A failed startup or preparation is not cached.
+     */
+    private static synchronized CompletableFuture<Template> createOrFindTemplate(DatabasePreparer preparer, Builder builder,
+                                                                                 Iterable<Consumer<Builder>> customizers)
+    {
+        final TemplateKey key = new TemplateKey(preparer, builder);
+        final CompletableFuture<Template> existing = TEMPLATES.get(key);
+        if (existing != null) {
+            return existing;
+        }
+
+        final CompletableFuture<Template> result;
+        if (builder.isUsePreparedTemplateCache() && preparer instanceof CacheableDatabasePreparer) {
+            final CacheableDatabasePreparer cacheablePreparer = (CacheableDatabasePreparer) preparer;
+            result = CompletableFuture.supplyAsync(() -> getTemplateCacheKey(builder, cacheablePreparer), CLUSTER_STARTER)
+                    .thenCompose(cacheKey -> cacheKey != null
+                            ? startCachedTemplate(customizers, cacheablePreparer, cacheKey)
+                            : startTemplate(preparer, builder, customizers));
+        } else {
+            result = startTemplate(preparer, builder, customizers);
+        }
+        TEMPLATES.put(key, result);
+        result.whenComplete((template, e) -> {
+            if (e != null) {
+                removeTemplate(key, result);
+            }
+        });
+        return result;
+    }
+
+    private static synchronized CompletableFuture<EmbeddedPostgres> createOrFindCluster(Builder builder)
+    {
+        final CompletableFuture<EmbeddedPostgres> existing = CLUSTERS.get(builder);
+        if (existing != null) {
+            return existing;
+        }
+
+        final CompletableFuture<EmbeddedPostgres> result = builder.startAsync(CLUSTER_STARTER);
+        CLUSTERS.put(builder, result);
+        result.whenComplete((pg, e) -> {
+            if (e != null) {
+                removeCluster(builder, result);
+            }
+        });
+        return result;
+    }
+
+    private static Builder newBuilder(Iterable<Consumer<Builder>> customizers)
+    {
         final Builder builder = EmbeddedPostgres.builder();
         customizers.forEach(c -> c.accept(builder));
-        final EmbeddedPostgres pg = builder.start();
-        preparer.prepare(pg.getTemplateDatabase());
+        return builder;
+    }
 
-        result = new PrepPipeline(pg).start();
-        CLUSTERS.put(key, result);
-        return result;
+    private static CompletableFuture<Template> startTemplate(DatabasePreparer preparer, Builder builder, Iterable<Consumer<Builder>> customizers)
+    {
+        if (preparer instanceof LayeredPreparer) {
+            final LayeredPreparer layeredPreparer = (LayeredPreparer) preparer;
+            return createOrFindTemplate(layeredPreparer.getParent(), builder, customizers)
+                    .thenApplyAsync(parent -> prepareTemplate(parent.pg, parent.name, layeredPreparer.getChild()), CLUSTER_STARTER);
+        }
+        return createOrFindCluster(builder)
+                .thenApplyAsync(pg -> prepareTemplate(pg, "template1", preparer), CLUSTER_STARTER);
+    }
+
+    /**
+     * Starts a cluster from the cached data directory that already contains the prepared template,
+     * the template is prepared and cached first if the cache has no entry for it yet.
+     * The cluster is not shared with other templates, as the cached database can only be restored with its cluster.
+     */
+    private static CompletableFuture<Template> startCachedTemplate(Iterable<Consumer<Builder>> customizers, CacheableDatabasePreparer preparer,
+                                                                   String cacheKey)
+    {
+        final String templateName = TEMPLATE_DATABASE_PREFIX + cacheKey;
+        final File seedDataDirectory;
+        try {
+            seedDataDirectory = TemplateCache.getOrCreate(newBuilder(customizers), cacheKey,
+                    pg -> createTemplate(pg, templateName, "template1", preparer));
+        } catch (final IOException | SQLException e) {
+            throw new CompletionException(e);
+        }
+        return createOrFindCluster(newBuilder(customizers).setSeedDataDirectory(seedDataDirectory))
+                .thenApply(pg -> new Template(pg, templateName));
+    }
+
+    /**
+     * The key covers the content the preparer applies as well as the binaries and the configuration of the cluster.
+     * Returns null if the preparer cannot be cached.
+     */
+    private static String getTemplateCacheKey(Builder builder, CacheableDatabasePreparer preparer)
+    {
+        final String preparerKey;
+        try {
+            preparerKey = preparer.getCacheKey();
+        } catch (final IOException e) {
+            LOG.warn("Could not compute the cache key of {}, the template will not be cached", preparer, e);
+            return null;
+        }
+        if (preparerKey == null) {
+            LOG.info("The result of {} cannot be cached", preparer);
+            return null;
+        }
+        return DigestUtils.sha256Hex(preparerKey + "|" + builder.getDataDirectoryCacheKey()).substring(0, 32);
+    }
+
+    private static synchronized void removePipeline(PipelineKey key, CompletableFuture<PrepPipeline> pipeline)
+    {
+        PIPELINES.remove(key, pipeline);
+    }
+
+    private static synchronized void removeTemplate(TemplateKey key, CompletableFuture<Template> template)
+    {
+        TEMPLATES.remove(key, template);
+    }
+
+    private static synchronized void removeCluster(Builder builder, CompletableFuture<EmbeddedPostgres> cluster)
+    {
+        CLUSTERS.remove(builder, cluster);
+    }
+
+    private static Template prepareTemplate(EmbeddedPostgres pg, String sourceTemplateName, DatabasePreparer preparer)
+    {
+        final String templateName = TEMPLATE_DATABASE_PREFIX + newDatabaseName();
+        try {
+            createTemplate(pg, templateName, sourceTemplateName, preparer);
+        } catch (final SQLException | RuntimeException e) {
+            try {
+                drop(pg, Collections.singletonList(templateName));
+            } catch (final SQLException dropException) {
+                e.addSuppressed(dropException);
+            }
+            throw new CompletionException(e);
+        }
+        return new Template(pg, templateName);
+    }
+
+    private static void createTemplate(EmbeddedPostgres pg, String templateName, String sourceTemplateName, DatabasePreparer preparer) throws SQLException
+    {
+        create(pg.getPostgresDatabase(), templateName, "postgres", sourceTemplateName, CreateDatabaseStrategy.DEFAULT);
+        preparer.prepare(pg.getDatabase("postgres", templateName));
+        try (Connection c = pg.getPostgresDatabase().getConnection();
+             PreparedStatement stmt = c.prepareStatement(String.format("ALTER DATABASE %s IS_TEMPLATE true", templateName))) {
+            stmt.execute();
+        }
+    }
+
+    private static PrepPipeline startPipeline(Template template, PrefetchConfig prefetch, CreateDatabaseStrategy strategy,
+                                              ReleaseStrategy releaseStrategy)
+    {
+        final CreateDatabaseStrategy resolvedStrategy;
+        ReleaseStrategy resolvedReleaseStrategy = releaseStrategy;
+        try {
+            resolvedStrategy = resolveStrategy(template.pg, template.name, strategy);
+            if (releaseStrategy == ReleaseStrategy.REUSE_UNMODIFIED && !DatabaseStatistics.isTrackingEnabled(template.pg)) {
+                LOG.warn("Modifications of databases cannot be detected with track_counts disabled, released databases will be dropped");
+                resolvedReleaseStrategy = ReleaseStrategy.DROP;
+            }
+        } catch (final SQLException e) {
+            throw new CompletionException(e);
+        }
+        return new PrepPipeline(template.pg, template.name, prefetch, resolvedStrategy, resolvedReleaseStrategy).start();
+    }
+
+    /**
+     * Resolves the strategy the server supports. In the automatic mode, a few databases are created from the prepared
+     * template with each strategy and the faster one is used, as it depends on the size of the template and the storage.
+     */
+    private static CreateDatabaseStrategy resolveStrategy(EmbeddedPostgres pg, String templateName, CreateDatabaseStrategy strategy) throws SQLException
+    {
+        if (strategy == CreateDatabaseStrategy.DEFAULT) {
+            return strategy;
+        }
+        final int serverVersion = pg.getServerVersionNum();
+        if (serverVersion < CREATE_DATABASE_STRATEGY_MIN_VERSION) {
+            if (strategy != CreateDatabaseStrategy.AUTO) {
+                LOG.warn("CREATE DATABASE strategy {} is not supported by server version {}, using the default one", strategy, serverVersion);
+            }
+            return CreateDatabaseStrategy.DEFAULT;
+        }
+        if (strategy != CreateDatabaseStrategy.AUTO) {
+            return strategy;
+        }
+        final long walLogNanos = measureStrategy(pg, templateName, CreateDatabaseStrategy.WAL_LOG);
+        final long fileCopyNanos = measureStrategy(pg, templateName, CreateDatabaseStrategy.FILE_COPY);
+        final CreateDatabaseStrategy faster = fileCopyNanos < walLogNanos ? CreateDatabaseStrategy.FILE_COPY : CreateDatabaseStrategy.WAL_LOG;
+        LOG.info("CREATE DATABASE took {}us with WAL_LOG and {}us with FILE_COPY, using {}",
+                walLogNanos / 1000, fileCopyNanos / 1000, faster);
+        return faster;
+    }
+
+    /**
+     * Returns the fastest of several database creations with the given strategy, the databases are dropped right away.
+     */
+    private static long measureStrategy(EmbeddedPostgres pg, String templateName, CreateDatabaseStrategy strategy) throws SQLException
+    {
+        final DataSource connectDb = pg.getPostgresDatabase();
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < CREATE_DATABASE_STRATEGY_SAMPLES; i++) {
+            final String dbName = newDatabaseName();
+            final long start = System.nanoTime();
+            create(connectDb, dbName, "postgres", templateName, strategy);
+            best = Math.min(best, System.nanoTime() - start);
+            try (Connection c = connectDb.getConnection();
+                 PreparedStatement stmt = c.prepareStatement(String.format("DROP DATABASE %s", dbName))) {
+                stmt.execute();
+            }
+        }
+        return best;
+    }
+
+    private static String newDatabaseName()
+    {
+        return RandomStringUtils.randomAlphabetic(12).toLowerCase(Locale.ENGLISH);
     }
 
     /**
@@ -113,7 +395,32 @@ public class PreparedDbProvider
     public ConnectionInfo createNewDatabase() throws SQLException
     {
         final DbInfo dbInfo = createNewDB();
-        return dbInfo == null || !dbInfo.isSuccess() ? null : new ConnectionInfo(dbInfo.getDbName(), dbInfo.getPort(), dbInfo.getUser(), dbInfo.getProperties());
+        return dbInfo == null || !dbInfo.isSuccess() ? null : new ConnectionInfo(dbInfo.getDbName(), dbInfo.getPort(), dbInfo.getUser(), dbInfo.getProperties(), dbInfo.getUnixSocketPath());
+    }
+
+    /**
+     * Create a new database and lease it. Unlike the other methods, the database is dropped
+     * in the background once the lease is closed, so that long test suites do not pile up databases,
+     * or it is reset and handed out again, see {@link ReleaseStrategy}.
+     */
+    public PreparedDatabase leaseDatabase() throws SQLException
+    {
+        final ConnectionInfo connectionInfo = createNewDatabase();
+        return new PreparedDatabase(this, connectionInfo, createDataSourceFromConnectionInfo(connectionInfo));
+    }
+
+    void release(PreparedDatabase database)
+    {
+        dbPreparer.release(database.getConnectionInfo().getDbName());
+    }
+
+    /**
+     * Returns how many released databases have been handed out again instead of creating new ones, see {@link ReleaseStrategy}.
+     * The count covers all providers with the same preparer and configuration, as they share the databases.
+     */
+    public long getReusedDatabaseCount()
+    {
+        return dbPreparer.reusedDatabases.get();
     }
 
     /**
@@ -126,6 +433,9 @@ public class PreparedDbProvider
         ds.setPortNumber(connectionInfo.getPort());
         ds.setDatabaseName(connectionInfo.getDbName());
         ds.setUser(connectionInfo.getUser());
+        if (connectionInfo.getUnixSocketPath() != null) {
+            UnixDomainSocketFactory.configure(ds, connectionInfo.getUnixSocketPath());
+        }
 
         Set<Entry<String, String>> properties = connectionInfo.getProperties().entrySet();
         for (Entry<String, String> property : properties) {
@@ -165,36 +475,198 @@ public class PreparedDbProvider
     }
 
     /**
-     * Spawns a background thread that prepares databases ahead of time for speed, and then uses a
-     * synchronous queue to hand the prepared databases off to test cases.
+     * Spawns background threads that prepare databases ahead of time for speed, and then uses a
+     * queue to hand the prepared databases off to test cases. The queue is filled up to the high watermark
+     * and refilled once it drains to the low watermark, see {@link PrefetchConfig}.
+     * Released databases are dropped in batches by another background thread, or reset and put back into the queue.
      */
     private static class PrepPipeline implements Runnable
     {
         private final EmbeddedPostgres pg;
-        private final SynchronousQueue<DbInfo> nextDatabase = new SynchronousQueue<DbInfo>();
-
-        PrepPipeline(EmbeddedPostgres pg)
+        private final String templateName;
+        private final PrefetchConfig prefetch;
+        private final CreateDatabaseStrategy strategy;
+        private final ReleaseStrategy releaseStrategy;
+        private final BlockingQueue<DbInfo> nextDatabase = new LinkedBlockingQueue<>();
+        private final BlockingQueue<String> releasedDatabases = new LinkedBlockingQueue<>();
+        // modification counts of the reused databases when they were released, new databases start with none
+        private final Map<String, Long> modificationCounts = new ConcurrentHashMap<>();
+        // the values of the sequences in the first clone of the template, null until taken or if they cannot be read
+        private volatile String sequenceValues;
+        private volatile boolean sequenceValuesTaken;
+        private final AtomicLong reusedDatabases = new AtomicLong();
+
+        private final Object demandLock = new Object();
+        // @GuardedBy("demandLock")
+        private int inProgress;
+        // @GuardedBy("demandLock")
+        private boolean filling = true;
+
+        PrepPipeline(EmbeddedPostgres pg, String templateName, PrefetchConfig prefetch, CreateDatabaseStrategy strategy,
+                     ReleaseStrategy releaseStrategy)
         {
             this.pg = pg;
+            this.templateName = templateName;
+            this.prefetch = prefetch;
+            this.strategy = strategy;
+            this.releaseStrategy = releaseStrategy;
         }
 
         PrepPipeline start()
         {
-            final ExecutorService service = Executors.newSingleThreadExecutor(r -> {
+            final AtomicInteger threadCounter = new AtomicInteger();
+            final ExecutorService service = Executors.newFixedThreadPool(prefetch.getProducers(), r -> {
                 final Thread t = new Thread(r);
                 t.setDaemon(true);
-                t.setName("cluster-" + pg + "-preparer");
+                t.setName("cluster-" + pg + "-" + templateName + "-preparer-" + threadCounter.incrementAndGet());
                 return t;
             });
-            service.submit(this);
+            for (int i = 0; i < prefetch.getProducers(); i++) {
+                service.submit(this);
+            }
             service.shutdown();
+
+            final Thread releaser = new Thread(this::processReleasedDatabases);
+            releaser.setDaemon(true);
+            releaser.setName("cluster-" + pg + "-" + templateName + "-releaser");
+            releaser.start();
             return this;
         }
 
+        void release(String dbName)
+        {
+            releasedDatabases.add(dbName);
+        }
+
+        private void processReleasedDatabases()
+        {
+            final List<String> batch = new ArrayList<>(MAX_DROP_BATCH_SIZE);
+            while (true) {
+                try {
+                    batch.add(releasedDatabases.take());
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                releasedDatabases.drainTo(batch, MAX_DROP_BATCH_SIZE - 1);
+                if (releaseStrategy == ReleaseStrategy.RESET) {
+                    batch.removeIf(this::reset);
+                } else if (releaseStrategy == ReleaseStrategy.REUSE_UNMODIFIED) {
+                    reuseUnmodified(batch);
+                }
+                if (batch.isEmpty()) {
+                    continue;
+                }
+                try {
+                    drop(pg, batch);
+                } catch (final SQLException e) {
+                    LOG.warn("Could not drop released databases {}", batch, e);
+                }
+                batch.clear();
+            }
+        }
+
+        /**
+         * Restores the data of the database and puts it back into the queue, returns false if it needs to be dropped instead.
+         */
+        private boolean reset(String dbName)
+        {
+            try {
+                if (ModificationTracker.reset(pg.getDatabase("postgres", dbName))) {
+                    reuse(dbName);
+                    return true;
+                }
+                LOG.debug("The schema of released database {} has changed, it will be dropped", dbName);
+            } catch (final SQLException e) {
+                LOG.warn("Could not reset released database {}, it will be dropped", dbName, e);
+            }
+            return false;
+        }
+
+        /**
+         * Puts the databases that have not been modified back into the queue and removes them from the batch,
+         * the remaining ones need to be dropped.
+         */
+        private void reuseUnmodified(List<String> batch)
+        {
+            final Map<String, Long> counts;
+            try {
+                counts = DatabaseStatistics.getModificationCounts(pg, batch);
+            } catch (final SQLException e) {
+                LOG.warn("Could not check whether released databases {} have been modified, they will be dropped", batch, e);
+                batch.forEach(modificationCounts::remove);
+                return;
+            }
+            batch.removeIf(dbName -> {
+                final Long count = counts.get(dbName);
+                final Long previousCount = modificationCounts.remove(dbName);
+                if (count == null || count != (previousCount != null ? previousCount : 0) || !hasSequenceValuesUnchanged(dbName)) {
+                    return false;
+                }
+                modificationCounts.put(dbName, count);
+                reuse(dbName);
+                return true;
+            });
+        }
+
+        /**
+         * Sequences advanced by {@code nextval} alone are not counted as modifications. If the template has no sequences,
+         * the check is skipped, as creating one would be counted.
+         */
+        private boolean hasSequenceValuesUnchanged(String dbName)
+        {
+            final String expected = sequenceValues;
+            if (expected == null) {
+                return false;
+            }
+            if (expected.isEmpty()) {
+                return true;
+            }
+            try {
+                return expected.equals(DatabaseStatistics.getSequenceValues(pg, dbName));
+            } catch (final SQLException e) {
+                LOG.warn("Could not check the sequences of released database {}, it will be dropped", dbName, e);
+                return false;
+            }
+        }
+
+        /**
+         * The sequences of the template itself cannot be read, as connecting to it would block the creation of the clones.
+         * All clones start with the same values, so these are taken from the first one before it is handed out.
+         */
+        private synchronized void takeSequenceValues(String dbName)
+        {
+            if (sequenceValuesTaken) {
+                return;
+            }
+            try {
+                sequenceValues = DatabaseStatistics.getSequenceValues(pg, dbName);
+                if (sequenceValues == null) {
+                    LOG.warn("The sequences of databases cannot be checked on this server, released databases will be dropped");
+                }
+            } catch (final SQLException e) {
+                LOG.warn("Could not read the sequences of database {}, released databases will be dropped", dbName, e);
+            }
+            sequenceValuesTaken = true;
+        }
+
+        private void reuse(String dbName)
+        {
+            final long reused = reusedDatabases.incrementAndGet();
+            nextDatabase.add(DbInfo.ok(dbName, pg.getPort(), "postgres", pg.getConnectConfig(), pg.getUnixSocketPath()));
+            LOG.debug("Released database {} has been reused, {} databases reused so far", dbName, reused);
+        }
+
         DbInfo getNextDb() throws SQLException
         {
             try {
                 final DbInfo next = nextDatabase.take();
+                synchronized (demandLock) {
+                    if (!filling && nextDatabase.size() <= prefetch.getLowWatermark()) {
+                        filling = true;
+                        demandLock.notifyAll();
+                    }
+                }
                 if (next.ex != null) {
                     throw next.ex;
                 }
@@ -209,28 +681,50 @@ public class PreparedDbProvider
         public void run()
         {
             while (true) {
-                final String newDbName = RandomStringUtils.randomAlphabetic(12).toLowerCase(Locale.ENGLISH);
-                SQLException failure = null;
                 try {
-                    create(pg.getPostgresDatabase(), newDbName, "postgres");
-                } catch (SQLException e) {
-                    failure = e;
-                }
-                try {
-                    if (failure == null) {
-                        nextDatabase.put(DbInfo.ok(newDbName, pg.getPort(), "postgres", pg.getConnectConfig()));
-                    } else {
-                        nextDatabase.put(DbInfo.error(failure));
-                    }
+                    awaitDemand();
                 } catch (final InterruptedException e) {
                     Thread.currentThread().interrupt();
                     return;
                 }
+                final String newDbName = newDatabaseName();
+                DbInfo dbInfo;
+                try {
+                    create(pg.getPostgresDatabase(), newDbName, "postgres", templateName, strategy);
+                    if (releaseStrategy == ReleaseStrategy.REUSE_UNMODIFIED && !sequenceValuesTaken) {
+                        takeSequenceValues(newDbName);
+                    }
+                    dbInfo = DbInfo.ok(newDbName, pg.getPort(), "postgres", pg.getConnectConfig(), pg.getUnixSocketPath());
+                } catch (SQLException e) {
+                    dbInfo = DbInfo.error(e);
+                }
+                synchronized (demandLock) {
+                    nextDatabase.add(dbInfo);
+                    inProgress--;
+                }
+            }
+        }
+
+        /**
+         * Waits until another database should be created, databases being created count as ready ones.
+         */
+        private void awaitDemand() throws InterruptedException
+        {
+            synchronized (demandLock) {
+                while (true) {
+                    if (filling && nextDatabase.size() + inProgress < prefetch.getHighWatermark()) {
+                        inProgress++;
+                        return;
+                    }
+                    filling = false;
+                    demandLock.wait();
+                }
             }
         }
     }
 
-    private static void create(final DataSource connectDb, final String dbName, final String userName) throws SQLException
+    private static void create(final DataSource connectDb, final String dbName, final String userName, final String templateName,
+                               final CreateDatabaseStrategy strategy) throws SQLException
     {
         if (dbName == null) {
             throw new IllegalStateException("the database name must not be null!");
@@ -239,21 +733,59 @@ public class PreparedDbProvider
             throw new IllegalStateException("the user name must not be null!");
         }
 
+        final String strategyClause = strategy == CreateDatabaseStrategy.DEFAULT ? "" : " STRATEGY = " + strategy.name();
         try (Connection c = connectDb.getConnection();
-             PreparedStatement stmt = c.prepareStatement(String.format("CREATE DATABASE %s OWNER %s ENCODING = 'utf8'", dbName, userName))) {
+             PreparedStatement stmt = c.prepareStatement(String.format("CREATE DATABASE %s OWNER %s ENCODING = 'utf8' TEMPLATE %s%s",
+                     dbName, userName, templateName, strategyClause))) {
             stmt.execute();
         }
     }
 
-    private static class ClusterKey {
+    /**
+     * Drops the databases over a single connection, terminating the connections that are still open.
+     * Servers older than PostgreSQL 13 do not support the FORCE option, so the connections are terminated first.
+     */
+    private static void drop(final EmbeddedPostgres pg, final List<String> dbNames) throws SQLException
+    {
+        final boolean force = pg.getServerVersionNum() >= DROP_DATABASE_FORCE_MIN_VERSION;
+        try (Connection c = pg.getPostgresDatabase().getConnection()) {
+            if (!force) {
+                try (PreparedStatement stmt = c.prepareStatement("SELECT pg_terminate_backend(pid) FROM pg_stat_activity WHERE datname = ANY (?)")) {
+                    stmt.setArray(1, c.createArrayOf("text", dbNames.toArray()));
+                    stmt.execute();
+                }
+            }
+            try (Statement stmt = c.createStatement()) {
+                for (String dbName : dbNames) {
+                    try {
+                        stmt.execute(String.format("DROP DATABASE IF EXISTS %s%s", dbName, force ? " WITH (FORCE)" : ""));
+                    } catch (final SQLException e) {
+                        LOG.warn("Could not drop released database {}", dbName, e);
+                    }
+                }
+            }
+        }
+    }
+
+    private static final class Template {
+
+        private final EmbeddedPostgres pg;
+        private final String name;
+
+        Template(EmbeddedPostgres pg, String name) {
+            this.pg = pg;
+            this.name = name;
+        }
+    }
+
+    private static class TemplateKey {
 
         private final DatabasePreparer preparer;
         private final Builder builder;
 
-        ClusterKey(DatabasePreparer preparer, Iterable<Consumer<Builder>> customizers) {
+        TemplateKey(DatabasePreparer preparer, Builder builder) {
             this.preparer = preparer;
-            this.builder = EmbeddedPostgres.builder();
-            customizers.forEach(c -> c.accept(this.builder));
+            this.builder = builder;
         }
 
         @Override
@@ -264,7 +796,7 @@ public class PreparedDbProvider
             if (o == null || getClass() != o.getClass()) {
                 return false;
             }
-            ClusterKey that = (ClusterKey) o;
+            TemplateKey that = (TemplateKey) o;
             return Objects.equals(preparer, that.preparer) &&
                     Objects.equals(builder, that.builder);
         }
@@ -275,31 +807,68 @@ public class PreparedDbProvider
         }
     }
 
+    private static class PipelineKey {
+
+        private final DatabasePreparer preparer;
+        private final Builder builder;
+        private final PrefetchConfig prefetch;
+        private final ReleaseStrategy releaseStrategy;
+
+        PipelineKey(DatabasePreparer preparer, Builder builder, PrefetchConfig prefetch, ReleaseStrategy releaseStrategy) {
+            this.preparer = preparer;
+            this.builder = builder;
+            this.prefetch = prefetch;
+            this.releaseStrategy = releaseStrategy;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            PipelineKey that = (PipelineKey) o;
+            return Objects.equals(preparer, that.preparer) &&
+                    Objects.equals(builder, that.builder) &&
+                    Objects.equals(prefetch, that.prefetch) &&
+                    releaseStrategy == that.releaseStrategy;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(preparer, builder, prefetch, releaseStrategy);
+        }
+    }
+
     public static class DbInfo
     {
         public static DbInfo ok(final String dbName, final int port, final String user) {
-            return ok(dbName, port, user, emptyMap());
+            return ok(dbName, port, user, emptyMap(), null);
         }
 
-        private static DbInfo ok(final String dbName, final int port, final String user, final Map<String, String> properties) {
-            return new DbInfo(dbName, port, user, properties, null);
+        private static DbInfo ok(final String dbName, final int port, final String user, final Map<String, String> properties, final String unixSocketPath) {
+            return new DbInfo(dbName, port, user, properties, unixSocketPath, null);
         }
 
         public static DbInfo error(SQLException e) {
-            return new DbInfo(null, -1, null, emptyMap(), e);
+            return new DbInfo(null, -1, null, emptyMap(), null, e);
         }
 
         private final String dbName;
         private final int port;
         private final String user;
         private final Map<String, String> properties;
+        private final String unixSocketPath;
         private final SQLException ex;
 
-        private DbInfo(final String dbName, final int port, final String user, final Map<String, String> properties, final SQLException e) {
+        private DbInfo(final String dbName, final int port, final String user, final Map<String, String> properties, final String unixSocketPath, final SQLException e) {
             this.dbName = dbName;
             this.port = port;
             this.user = user;
             this.properties = properties;
+            this.unixSocketPath = unixSocketPath;
             this.ex = e;
         }
 
@@ -319,6 +888,10 @@ public class PreparedDbProvider
             return unmodifiableMap(properties);
         }
 
+        public String getUnixSocketPath() {
+            return unixSocketPath;
+        }
+
         public SQLException getException() {
             return ex;
         }
@@ -19,10 +19,11 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.UncheckedIOException;
-import java.lang.invoke.MethodHandles;
-import java.lang.invoke.MethodType;
-import java.lang.reflect.Field;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
 
 import static org.apache.commons.lang3.StringUtils.isNotBlank;
 
@@ -34,11 +35,18 @@ import static org.apache.commons.lang3.StringUtils.isNotBlank;
  * <p>
  * The use of the input stream is threadsafe since it's used only in a single thread&mdash;the one launched by this
  * code.
+ *
+ * <p>
+ * The last lines are kept in memory, so that they can be reported when the process fails.
  */
 final class ProcessOutputLogger implements Runnable {
+    private static final int RECENT_LINES_LIMIT = 30;
+
     @SuppressWarnings("PMD.LoggerIsNotStaticFinal")
     private final Logger logger;
     private final BufferedReader reader;
+    private final Deque<String> recentLines = new ArrayDeque<>();
+    private volatile Thread thread;
 
     private ProcessOutputLogger(final Logger logger, final Process process) {
         this.logger = logger;
@@ -49,7 +57,10 @@ final class ProcessOutputLogger implements Runnable {
     public void run() {
         try {
             try {
-                reader.lines().forEach(logger::info);
+                reader.lines().forEach(line -> {
+                    logger.info(line);
+                    rememberLine(line);
+                });
             } catch (final UncheckedIOException e) {
                 logger.error("while reading output", e);
             }
@@ -62,25 +73,43 @@ final class ProcessOutputLogger implements Runnable {
         }
     }
 
-    static void logOutput(final Logger logger, final Process process, final String processName) {
+    private void rememberLine(final String line) {
+        synchronized (recentLines) {
+            if (recentLines.size() == RECENT_LINES_LIMIT) {
+                recentLines.removeFirst();
+            }
+            recentLines.addLast(line);
+        }
+    }
+
+    /**
+     * Returns the last lines of the output, waiting up to the given time for the output to be fully read.
+     * The output ends when the process and all its children holding the stream exit.
+     */
+    List<String> getRecentLines(final long waitMillis) {
+        try {
+            thread.join(waitMillis);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (recentLines) {
+            return new ArrayList<>(recentLines);
+        }
+    }
+
+    static ProcessOutputLogger logOutput(final Logger logger, final Process process, final String processName) {
         final String threadName = (isNotBlank(processName) ? processName : "unknown") + ":" + processId(process);
-        final Thread t = new Thread(new ProcessOutputLogger(logger, process));
+        final ProcessOutputLogger outputLogger = new ProcessOutputLogger(logger, process);
+        final Thread t = new Thread(outputLogger);
         t.setName(threadName);
         t.setDaemon(true);
+        outputLogger.thread = t;
         t.start();
+        return outputLogger;
     }
 
     private static String processId(Process process) {
-        try { // java 9+
-            return String.format("pid(%s)", MethodHandles.lookup().findVirtual(Process.class, "pid", MethodType.methodType(long.class)).invoke(process));
-        } catch (Throwable ignored) {} // NOPMD since MethodHandles.invoke throws Throwable
-
-        try { // openjdk / oraclejdk 8
-            final Field pid = process.getClass().getDeclaredField("pid");
-            pid.setAccessible(true);
-            return String.format("pid(%s)", pid.getInt(process));
-        } catch (Exception ignored) {} // NOPMD
-
-        return String.format("id(%s)", process.hashCode());
+        final Long pid = ProcessSignals.pid(process);
+        return pid != null ? String.format("pid(%s)", pid) : String.format("id(%s)", process.hashCode());
     }
 }
@@ -0,0 +1,63 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.zonky.test.db.postgres.embedded;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+
+/**
+ * Helpers for sending unix signals to child processes, which is not supported by the {@link Process} API
+ * beyond {@code SIGTERM} and {@code SIGKILL}.
+ */
+final class ProcessSignals {
+
+    private ProcessSignals() {}
+
+    /**
+     * Returns the operating system identifier of the process, or {@code null} if it cannot be determined.
+     */
+    static Long pid(final Process process) {
+        try { // java 9+
+            return (long) MethodHandles.lookup().findVirtual(Process.class, "pid", MethodType.methodType(long.class)).invoke(process);
+        } catch (Throwable ignored) {} // NOPMD since MethodHandles.invoke throws Throwable
+
+        try { // openjdk / oraclejdk 8
+            final Field pid = process.getClass().getDeclaredField("pid");
+            pid.setAccessible(true);
+            return (long) pid.getInt(process);
+        } catch (Exception ignored) {} // NOPMD
+
+        return null;
+    }
+
+    /**
+     * Sends the given signal (e.g. {@code INT}, {@code QUIT}) to the process and returns whether it was delivered.
+     */
+    static boolean signal(final long pid, final String signal) throws IOException {
+        final Process kill = new ProcessBuilder("kill", "-" + signal, Long.toString(pid))
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.to(new File("/dev/null")))
+                .start();
+        try {
+            return kill.waitFor() == 0;
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while sending SIG" + signal + " to " + pid);
+        }
+    }
+}
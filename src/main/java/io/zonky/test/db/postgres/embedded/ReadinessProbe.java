@@ -0,0 +1,172 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.zonky.test.db.postgres.embedded;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Detects whether a starting postmaster accepts connections without the cost of a full JDBC connection.
+ *
+ * <p>
+ * Since PostgreSQL 10, the postmaster writes its state to the last line of {@code postmaster.pid}, which is cheap
+ * to poll. Once it reports {@code ready}, the readiness is confirmed by sending a single startup packet and reading
+ * the first response message, which requires no query to be executed.
+ */
+final class ReadinessProbe {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ReadinessProbe.class);
+
+    static final String STATUS_READY = "ready";
+
+    private static final String PID_FILE_NAME = "postmaster.pid";
+    private static final int PID_FILE_PORT_LINE = 3;
+    private static final int PID_FILE_STATUS_LINE = 7;
+
+    private static final int PROTOCOL_VERSION_3 = 196608;
+    private static final String CANNOT_CONNECT_NOW = "57P03";
+    private static final int MAX_RESPONSE_LENGTH = 64 * 1024;
+
+    private ReadinessProbe() {}
+
+    /**
+     * Returns the state of the postmaster written in the pid file, or {@code null} if the state is not known (yet).
+     * The state is not written by versions older than PostgreSQL 10.
+     */
+    static String readPidFileStatus(File dataDirectory) {
+        final List<String> lines = readPidFile(dataDirectory);
+        return lines.size() > PID_FILE_STATUS_LINE ? lines.get(PID_FILE_STATUS_LINE).trim() : null;
+    }
+
+    /**
+     * Returns whether the pid file already contains the port, i.e. whether the postmaster is about to listen.
+     */
+    static boolean isPidFilePortWritten(File dataDirectory) {
+        return readPidFile(dataDirectory).size() > PID_FILE_PORT_LINE;
+    }
+
+    /**
+     * Returns the pid of the postmaster written in the pid file, or {@code null} if it is not known.
+     */
+    static Long readPostmasterPid(File dataDirectory) {
+        final List<String> lines = readPidFile(dataDirectory);
+        try {
+            return lines.isEmpty() ? null : Long.valueOf(lines.get(0).trim());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static List<String> readPidFile(File dataDirectory) {
+        try {
+            return Files.readAllLines(new File(dataDirectory, PID_FILE_NAME).toPath(), UTF_8);
+        } catch (IOException e) {
+            // the file does not exist yet or is just being written
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * Sends a startup packet to the server and returns whether the server accepted it.
+     * Any response other than "the database system is starting up" means the server is accepting connections.
+     */
+    static boolean isAcceptingConnections(int port, String user, String database, int timeoutMillis) {
+        try (Socket socket = new Socket()) {
+            socket.setSoTimeout(timeoutMillis);
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), timeoutMillis);
+
+            final DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.write(startupPacket(user, database));
+            out.flush();
+
+            final DataInputStream in = new DataInputStream(socket.getInputStream());
+            final byte type = in.readByte();
+            final int length = in.readInt();
+            if (length < 4 || length > MAX_RESPONSE_LENGTH) {
+                return false;
+            }
+            final byte[] body = new byte[length - 4];
+            in.readFully(body);
+
+            if (type == 'E') {
+                return !CANNOT_CONNECT_NOW.equals(errorCode(body));
+            }
+            terminate(out);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Terminates the session gracefully, so that the server does not log an unexpected EOF.
+     * The server may have already closed the connection, e.g. if the database does not exist.
+     */
+    private static void terminate(DataOutputStream out) {
+        try {
+            out.writeByte('X');
+            out.writeInt(4);
+            out.flush();
+        } catch (IOException e) {
+            LOG.trace("Could not terminate the readiness probe session", e);
+        }
+    }
+
+    private static byte[] startupPacket(String user, String database) throws IOException {
+        final ByteArrayOutputStream parameters = new ByteArrayOutputStream();
+        for (String value : new String[] {"user", user, "database", database}) {
+            parameters.write(value.getBytes(UTF_8));
+            parameters.write(0);
+        }
+        parameters.write(0);
+
+        final ByteArrayOutputStream packet = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(packet);
+        out.writeInt(8 + parameters.size());
+        out.writeInt(PROTOCOL_VERSION_3);
+        parameters.writeTo(out);
+        return packet.toByteArray();
+    }
+
+    private static String errorCode(byte[] body) {
+        int i = 0;
+        while (i < body.length && body[i] != 0) {
+            final byte field = body[i++];
+            final int start = i;
+            while (i < body.length && body[i] != 0) {
+                i++;
+            }
+            if (field == 'C') {
+                return new String(body, start, i - start, UTF_8);
+            }
+            i++;
+        }
+        return null;
+    }
+}
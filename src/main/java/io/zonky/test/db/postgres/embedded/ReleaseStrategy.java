@@ -0,0 +1,43 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.zonky.test.db.postgres.embedded;
+
+/**
+ * What {@link PreparedDbProvider} does with a leased database once it is released.
+ *
+ * @see PreparedDbProvider#leaseDatabase()
+ */
+public enum ReleaseStrategy {
+
+    /**
+     * The database is dropped in the background, each lease gets a fresh clone of the template.
+     */
+    DROP,
+
+    /**
+     * The data of the tables and sequences modified by the test is restored in the background and the database
+     * is handed out again, which is much cheaper than a new clone of a large template.
+     * Modifications are tracked by triggers and the original data is kept in the {@code epg_reset} schema,
+     * both are installed into the template. Databases whose schema has been changed are dropped instead.
+     */
+    RESET,
+
+    /**
+     * Databases that have not been modified, according to the tuple counters of {@code pg_stat_database},
+     * and whose sequences still have the values of the template, are handed out again, the modified ones are dropped.
+     * This suits read-only tests and needs no changes of the template.
+     */
+    REUSE_UNMODIFIED
+}
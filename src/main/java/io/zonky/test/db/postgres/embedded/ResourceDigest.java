@@ -0,0 +1,119 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.zonky.test.db.postgres.embedded;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Computes a hash of the content of resources, e.g. of migrations, in a stable order.
+ */
+final class ResourceDigest {
+
+    private final MessageDigest digest = DigestUtils.getSha256Digest();
+
+    ResourceDigest update(String value) {
+        digest.update(String.valueOf(value).getBytes(UTF_8));
+        digest.update((byte) 0);
+        return this;
+    }
+
+    /**
+     * Adds all resources under the given classpath location, from directories as well as from jar files.
+     * Returns false if the location could not be found or enumerated.
+     */
+    boolean updateClasspath(ClassLoader classLoader, String location) throws IOException {
+        final String path = location.replaceAll("^/+|/+$", "");
+        final List<URL> urls = Collections.list(classLoader.getResources(path));
+        if (urls.isEmpty()) {
+            return false;
+        }
+        for (URL url : urls) {
+            if ("file".equals(url.getProtocol())) {
+                try {
+                    updateDirectory(Paths.get(url.toURI()));
+                } catch (URISyntaxException e) {
+                    throw new IOException("Invalid resource location " + url, e);
+                }
+            } else if ("jar".equals(url.getProtocol())) {
+                final JarURLConnection connection = (JarURLConnection) url.openConnection();
+                connection.setUseCaches(false);
+                try (JarFile jarFile = connection.getJarFile()) {
+                    updateJar(jarFile, path + "/");
+                }
+            } else {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Adds all files in the directory and its subdirectories, or the file itself.
+     * Returns false if it does not exist.
+     */
+    boolean updateDirectory(Path directory) throws IOException {
+        if (!Files.exists(directory)) {
+            return false;
+        }
+        final List<Path> files;
+        try (Stream<Path> paths = Files.walk(directory)) {
+            files = paths.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+        }
+        for (Path file : files) {
+            update(directory.relativize(file).toString().replace('\\', '/'));
+            digest.update(Files.readAllBytes(file));
+        }
+        return true;
+    }
+
+    private void updateJar(JarFile jarFile, String prefix) throws IOException {
+        final List<JarEntry> entries = jarFile.stream()
+                .filter(entry -> !entry.isDirectory() && entry.getName().startsWith(prefix))
+                .sorted((a, b) -> a.getName().compareTo(b.getName()))
+                .collect(Collectors.toList());
+        final byte[] buffer = new byte[8192];
+        for (JarEntry entry : entries) {
+            update(entry.getName().substring(prefix.length()));
+            try (InputStream in = jarFile.getInputStream(entry)) {
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    digest.update(buffer, 0, read);
+                }
+            }
+        }
+    }
+
+    String toHex() {
+        return Hex.encodeHexString(digest.digest());
+    }
+}
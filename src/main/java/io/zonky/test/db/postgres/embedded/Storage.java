@@ -0,0 +1,34 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.zonky.test.db.postgres.embedded;
+
+/**
+ * The medium the data directory is placed on.
+ *
+ * @see EmbeddedPostgres.Builder#setStorage(Storage)
+ */
+public enum Storage {
+
+    /**
+     * The data directory is placed in the temporary directory ({@code java.io.tmpdir}).
+     */
+    DISK,
+
+    /**
+     * The data directory is placed on a memory-backed file system ({@code /dev/shm} or another tmpfs mount),
+     * if one is available and has enough free space. Otherwise, it falls back to {@link #DISK}.
+     */
+    MEMORY
+}
@@ -0,0 +1,202 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.zonky.test.db.postgres.embedded;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.SystemUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Resolves a PostgreSQL distribution installed on the host system, so that it can be used in place
+ * instead of extracting the bundled binaries.
+ *
+ * <p>
+ * The usual installation locations are probed ({@code /usr/lib/postgresql/<version>}, {@code /usr/pgsql-<version>},
+ * Homebrew and Windows installer prefixes), followed by the directories on the {@code PATH}.
+ * Among the installations whose major version is in the requested range, the newest one is used.
+ * If no suitable installation is found, the bundled binaries are used as usual.
+ *
+ * <p>Example of use:
+ * <pre> {@code
+ *     EmbeddedPostgres pg = EmbeddedPostgres.builder()
+ *             .setPgDirectoryResolver(SystemPostgresDirectoryResolver.forVersions(13, 16))
+ *             .start();
+ * }</pre>
+ */
+public class SystemPostgresDirectoryResolver implements PgDirectoryResolver {
+
+    private static final Logger logger = LoggerFactory.getLogger(SystemPostgresDirectoryResolver.class);
+
+    private static final Pattern INSTALLATION_NAME = Pattern.compile("^(\\d+(\\.\\d+)?|pgsql-?\\d+(\\.\\d+)?|pgsql|postgresql(@\\d+(\\.\\d+)?)?)$");
+    private static final Pattern VERSION_OUTPUT = Pattern.compile("\\(PostgreSQL\\)\\s+(\\d+)");
+
+    private static final List<File> DEFAULT_SEARCH_DIRECTORIES = Arrays.asList(
+            new File("/usr/lib/postgresql"),
+            new File("/usr"),
+            new File("/usr/local"),
+            new File("/usr/local/opt"),
+            new File("/opt/homebrew/opt"),
+            new File("C:\\Program Files\\PostgreSQL"));
+
+    private final int minMajorVersion;
+    private final int maxMajorVersion;
+    private final List<File> searchDirectories;
+    private final String path;
+
+    /**
+     * Creates a resolver accepting an installation of any version.
+     */
+    public static SystemPostgresDirectoryResolver anyVersion() {
+        return forVersions(0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Creates a resolver accepting only an installation of the given major version.
+     */
+    public static SystemPostgresDirectoryResolver forVersion(int majorVersion) {
+        return forVersions(majorVersion, majorVersion);
+    }
+
+    /**
+     * Creates a resolver accepting an installation with a major version in the given inclusive range.
+     */
+    public static SystemPostgresDirectoryResolver forVersions(int minMajorVersion, int maxMajorVersion) {
+        return new SystemPostgresDirectoryResolver(minMajorVersion, maxMajorVersion, DEFAULT_SEARCH_DIRECTORIES, System.getenv("PATH"));
+    }
+
+    SystemPostgresDirectoryResolver(int minMajorVersion, int maxMajorVersion, List<File> searchDirectories, String path) {
+        if (minMajorVersion > maxMajorVersion) {
+            throw new IllegalArgumentException("The minimum version must not be greater than the maximum version");
+        }
+        this.minMajorVersion = minMajorVersion;
+        this.maxMajorVersion = maxMajorVersion;
+        this.searchDirectories = new ArrayList<>(searchDirectories);
+        this.path = path;
+    }
+
+    @Override
+    public File getPgDirectory(String system, String machineHardware) {
+        File bestDirectory = null;
+        int bestVersion = -1;
+
+        for (File candidate : findCandidates()) {
+            if (!isInstallation(candidate)) {
+                continue;
+            }
+            final int version = detectMajorVersion(candidate);
+            logger.debug("Found postgres installation - location: '{}', version: {}", candidate, version);
+            if (version >= minMajorVersion && version <= maxMajorVersion && version > bestVersion) {
+                bestDirectory = candidate;
+                bestVersion = version;
+            }
+        }
+
+        if (bestDirectory != null) {
+            logger.info("System postgres installation found: '{}' (version {})", bestDirectory, bestVersion);
+        } else {
+            logger.info("No system postgres installation found in the version range {}-{}, the bundled binaries will be used",
+                    minMajorVersion, maxMajorVersion == Integer.MAX_VALUE ? "" : maxMajorVersion);
+        }
+        return bestDirectory;
+    }
+
+    private Set<File> findCandidates() {
+        final Set<File> candidates = new LinkedHashSet<>();
+        for (File searchDirectory : searchDirectories) {
+            final File[] children = searchDirectory.listFiles(file -> file.isDirectory() && INSTALLATION_NAME.matcher(file.getName()).matches());
+            if (children != null) {
+                candidates.addAll(Arrays.asList(children));
+            }
+        }
+        if (StringUtils.isNotBlank(path)) {
+            for (String pathEntry : path.split(File.pathSeparator)) {
+                final File binDirectory = new File(pathEntry);
+                if ("bin".equals(binDirectory.getName()) && binDirectory.getParentFile() != null) {
+                    candidates.add(binDirectory.getParentFile());
+                }
+            }
+        }
+        return candidates;
+    }
+
+    private static boolean isInstallation(File directory) {
+        return Arrays.asList("initdb", "pg_ctl", "postgres").stream()
+                .map(commandName -> executable(directory, commandName))
+                .allMatch(file -> file.isFile() && file.canExecute());
+    }
+
+    private static int detectMajorVersion(File directory) {
+        try {
+            final Process process = new ProcessBuilder(executable(directory, "postgres").getPath(), "--version")
+                    .redirectErrorStream(true)
+                    .start();
+            final String output;
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), UTF_8))) {
+                output = reader.readLine();
+            }
+            if (!process.waitFor(10, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+                return -1;
+            }
+            final Matcher matcher = VERSION_OUTPUT.matcher(StringUtils.defaultString(output));
+            return matcher.find() ? Integer.parseInt(matcher.group(1)) : -1;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return -1;
+        } catch (Exception e) {
+            logger.debug("Could not detect the version of postgres installation '{}'", directory, e);
+            return -1;
+        }
+    }
+
+    private static File executable(File directory, String commandName) {
+        return new File(directory, "bin/" + commandName + (SystemUtils.IS_OS_WINDOWS ? ".exe" : ""));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        SystemPostgresDirectoryResolver that = (SystemPostgresDirectoryResolver) o;
+        return minMajorVersion == that.minMajorVersion
+                && maxMajorVersion == that.maxMajorVersion
+                && Objects.equals(searchDirectories, that.searchDirectories)
+                && Objects.equals(path, that.path);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(minMajorVersion, maxMajorVersion, searchDirectories, path);
+    }
+}
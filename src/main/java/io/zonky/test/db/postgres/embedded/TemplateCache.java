@@ -0,0 +1,113 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.zonky.test.db.postgres.embedded;
+
+import io.zonky.test.db.postgres.embedded.EmbeddedPostgres.Builder;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.time.StopWatch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.SQLException;
+import java.util.UUID;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Caches prepared templates across runs in the working directory.
+ *
+ * <p>
+ * Each entry is the stopped data directory of a cluster that contains the prepared template database.
+ * It is prepared in a staging directory and moved into place once complete, concurrent JVMs coordinate through
+ * a lock file, so the preparation runs only once. The modification time of an entry records its last use,
+ * entries that have not been used for a week are removed.
+ */
+final class TemplateCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TemplateCache.class);
+
+    private static final String ENTRY_PREFIX = "template-";
+    private static final String STAGING_SUFFIX = ".tmp-";
+    private static final long UNUSED_ENTRY_TTL_MS = 7L * 24 * 60 * 60 * 1000;
+
+    private static final Lock LOCK = new ReentrantLock();
+
+    interface Preparation {
+        void prepare(EmbeddedPostgres pg) throws SQLException;
+    }
+
+    private TemplateCache() {}
+
+    /**
+     * Returns the data directory cached under the key. If there is none yet, a cluster is started from the builder,
+     * prepared and stopped, and its data directory is stored.
+     */
+    static File getOrCreate(Builder builder, String key, Preparation preparation) throws IOException, SQLException {
+        final File workingDirectory = builder.resolveWorkingDirectory();
+        final File entry = new File(workingDirectory, ENTRY_PREFIX + key);
+        if (entry.isDirectory()) {
+            entry.setLastModified(System.currentTimeMillis());
+            LOG.info("Using prepared template cached in {}", entry);
+            return entry;
+        }
+
+        Files.createDirectories(workingDirectory.toPath());
+        LOCK.lock();
+        try (FileChannel lockChannel = FileChannel.open(new File(workingDirectory, entry.getName() + ".lock").toPath(), CREATE, WRITE);
+             FileLock ignored = lockChannel.lock()) {
+            if (!entry.isDirectory()) {
+                final File stagingDirectory = new File(workingDirectory, entry.getName() + STAGING_SUFFIX + UUID.randomUUID());
+                try {
+                    final StopWatch watch = new StopWatch();
+                    watch.start();
+                    try (EmbeddedPostgres pg = builder.setDataDirectory(stagingDirectory).setCleanDataDirectory(false).start()) {
+                        preparation.prepare(pg);
+                    }
+                    // without the lock file, the entry is not taken for a stale data directory by the janitor
+                    Files.deleteIfExists(new File(stagingDirectory, EmbeddedPostgres.LOCK_FILE_NAME).toPath());
+                    Files.deleteIfExists(new File(stagingDirectory, "postmaster.pid").toPath());
+                    Files.move(stagingDirectory.toPath(), entry.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                    LOG.info("Prepared template cached in {} in {}", entry, watch);
+                } finally {
+                    FileUtils.deleteQuietly(stagingDirectory);
+                }
+                removeUnusedEntries(workingDirectory);
+            }
+        } finally {
+            LOCK.unlock();
+        }
+        return entry;
+    }
+
+    private static void removeUnusedEntries(File workingDirectory) {
+        final long now = System.currentTimeMillis();
+        final File[] entries = workingDirectory.listFiles(file -> file.isDirectory()
+                && file.getName().startsWith(ENTRY_PREFIX) && !file.getName().contains(STAGING_SUFFIX));
+        for (File entry : entries != null ? entries : new File[0]) {
+            if (now - entry.lastModified() > UNUSED_ENTRY_TTL_MS) {
+                LOG.info("Removing unused prepared template {}", entry);
+                FileUtils.deleteQuietly(entry);
+            }
+        }
+    }
+}
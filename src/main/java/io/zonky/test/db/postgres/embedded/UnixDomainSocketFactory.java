@@ -0,0 +1,424 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.zonky.test.db.postgres.embedded;
+
+import org.apache.commons.lang3.SystemUtils;
+import org.postgresql.ds.common.BaseDataSource;
+
+import javax.net.SocketFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketOption;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A pgjdbc socket factory connecting to the server through a unix domain socket instead of the loopback TCP stack.
+ * The path of the socket file is passed as the {@code socketFactoryArg} connection property,
+ * the host and port of the connection are ignored.
+ *
+ * <p>
+ * Unix domain socket channels are available since Java 16, so the support is detected at runtime
+ * and the connections fall back to TCP on older runtimes.
+ */
+public class UnixDomainSocketFactory extends SocketFactory {
+
+    // Linux allows 108 bytes including the terminating null byte, macOS 104
+    private static final int MAX_SOCKET_PATH_LENGTH = 103;
+
+    private static final Method ADDRESS_FACTORY = findAddressFactory();
+
+    private final String socketPath;
+
+    public UnixDomainSocketFactory(String socketPath) {
+        this.socketPath = Objects.requireNonNull(socketPath, "The socket path must be set as the socketFactoryArg property");
+    }
+
+    /**
+     * Returns whether unix domain sockets can be used on the current platform and runtime.
+     */
+    static boolean isSupported() {
+        return ADDRESS_FACTORY != null && !SystemUtils.IS_OS_WINDOWS;
+    }
+
+    /**
+     * Returns whether the given socket file path fits into the limits of the operating system.
+     */
+    static boolean isValidSocketPath(String socketPath) {
+        return socketPath.getBytes(StandardCharsets.UTF_8).length <= MAX_SOCKET_PATH_LENGTH;
+    }
+
+    /**
+     * Configures the data source to connect through the given socket file.
+     */
+    @SuppressWarnings("deprecation")
+    static void configure(BaseDataSource dataSource, String socketPath) {
+        dataSource.setSocketFactory(UnixDomainSocketFactory.class.getName());
+        dataSource.setSocketFactoryArg(socketPath);
+    }
+
+    @Override
+    public Socket createSocket() {
+        return new UnixDomainSocket(socketPath);
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+        return connectedSocket();
+    }
+
+    @Override
+    public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+        return connectedSocket();
+    }
+
+    @Override
+    public Socket createSocket(InetAddress host, int port) throws IOException {
+        return connectedSocket();
+    }
+
+    @Override
+    public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+        return connectedSocket();
+    }
+
+    private Socket connectedSocket() throws IOException {
+        final Socket socket = createSocket();
+        socket.connect(null);
+        return socket;
+    }
+
+    private static Method findAddressFactory() {
+        try { // java 16+
+            return Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", String.class);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * A socket backed by a non-blocking unix domain socket channel. The channel is non-blocking,
+     * so that reads can honor the socket timeout, which pgjdbc relies on, using a selector.
+     */
+    private static class UnixDomainSocket extends Socket {
+
+        private final String socketPath;
+        private final Object readLock = new Object();
+        private final Object writeLock = new Object();
+
+        private volatile SocketChannel channel;
+        private volatile boolean closed;
+        private Selector readSelector;
+        private Selector writeSelector;
+        private InputStream inputStream;
+        private OutputStream outputStream;
+
+        private volatile int soTimeout;
+        private boolean tcpNoDelay;
+        private boolean keepAlive;
+
+        UnixDomainSocket(String socketPath) {
+            this.socketPath = socketPath;
+        }
+
+        @Override
+        public void connect(SocketAddress endpoint) throws IOException {
+            connect(endpoint, 0);
+        }
+
+        @Override
+        public synchronized void connect(SocketAddress endpoint, int timeout) throws IOException {
+            if (closed) {
+                throw new SocketException("Socket is closed");
+            }
+            if (channel != null) {
+                throw new SocketException("Already connected");
+            }
+            final SocketAddress address;
+            try {
+                address = (SocketAddress) ADDRESS_FACTORY.invoke(null, socketPath);
+            } catch (ReflectiveOperationException e) {
+                throw new SocketException("Unix domain sockets are not supported: " + e);
+            }
+            // connecting to a unix domain socket does not block on network round trips, so the timeout is not needed
+            final SocketChannel socketChannel = SocketChannel.open(address);
+            try {
+                socketChannel.configureBlocking(false);
+                readSelector = Selector.open();
+                socketChannel.register(readSelector, SelectionKey.OP_READ);
+                writeSelector = Selector.open();
+                socketChannel.register(writeSelector, SelectionKey.OP_WRITE);
+            } catch (IOException e) {
+                socketChannel.close();
+                closeSelectors();
+                throw e;
+            }
+            inputStream = new ChannelInputStream();
+            outputStream = new ChannelOutputStream();
+            channel = socketChannel;
+        }
+
+        @Override
+        public void bind(SocketAddress bindpoint) throws IOException {
+            throw new SocketException("Binding a local address is not supported by unix domain sockets");
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            ensureConnected();
+            return inputStream;
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            ensureConnected();
+            return outputStream;
+        }
+
+        @Override
+        public boolean isConnected() {
+            return channel != null;
+        }
+
+        @Override
+        public boolean isBound() {
+            return channel != null;
+        }
+
+        @Override
+        public boolean isClosed() {
+            return closed;
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                if (channel != null) {
+                    channel.close();
+                }
+            } finally {
+                closeSelectors();
+            }
+        }
+
+        @Override
+        public void shutdownInput() throws IOException {
+            ensureConnected();
+            channel.shutdownInput();
+        }
+
+        @Override
+        public void shutdownOutput() throws IOException {
+            ensureConnected();
+            channel.shutdownOutput();
+        }
+
+        @Override
+        public void setSoTimeout(int timeout) throws SocketException {
+            if (timeout < 0) {
+                throw new IllegalArgumentException("timeout can't be negative");
+            }
+            soTimeout = timeout;
+        }
+
+        @Override
+        public int getSoTimeout() {
+            return soTimeout;
+        }
+
+        // TCP options have no meaning for unix domain sockets, they are only remembered
+
+        @Override
+        public void setTcpNoDelay(boolean on) {
+            tcpNoDelay = on;
+        }
+
+        @Override
+        public boolean getTcpNoDelay() {
+            return tcpNoDelay;
+        }
+
+        @Override
+        public void setKeepAlive(boolean on) {
+            keepAlive = on;
+        }
+
+        @Override
+        public boolean getKeepAlive() {
+            return keepAlive;
+        }
+
+        @Override
+        public void setSendBufferSize(int size) throws SocketException {
+            setIntOption(StandardSocketOptions.SO_SNDBUF, size);
+        }
+
+        @Override
+        public int getSendBufferSize() throws SocketException {
+            return getIntOption(StandardSocketOptions.SO_SNDBUF);
+        }
+
+        @Override
+        public void setReceiveBufferSize(int size) throws SocketException {
+            setIntOption(StandardSocketOptions.SO_RCVBUF, size);
+        }
+
+        @Override
+        public int getReceiveBufferSize() throws SocketException {
+            return getIntOption(StandardSocketOptions.SO_RCVBUF);
+        }
+
+        @Override
+        public String toString() {
+            return "UnixDomainSocket[" + socketPath + "]";
+        }
+
+        private void setIntOption(SocketOption<Integer> option, int value) throws SocketException {
+            ensureConnected();
+            try {
+                channel.setOption(option, value);
+            } catch (IOException | UnsupportedOperationException e) {
+                throw socketException(option, e);
+            }
+        }
+
+        private int getIntOption(SocketOption<Integer> option) throws SocketException {
+            ensureConnected();
+            try {
+                return channel.getOption(option);
+            } catch (IOException | UnsupportedOperationException e) {
+                throw socketException(option, e);
+            }
+        }
+
+        private static SocketException socketException(SocketOption<?> option, Exception cause) {
+            final SocketException exception = new SocketException("Could not access socket option " + option.name());
+            exception.initCause(cause);
+            return exception;
+        }
+
+        private void ensureConnected() throws SocketException {
+            if (closed) {
+                throw new SocketException("Socket is closed");
+            }
+            if (channel == null) {
+                throw new SocketException("Socket is not connected");
+            }
+        }
+
+        private void awaitSelection(Selector selector, long timeoutMillis) throws IOException {
+            try {
+                selector.select(timeoutMillis);
+                selector.selectedKeys().clear();
+            } catch (ClosedSelectorException e) {
+                throw new SocketException("Socket is closed");
+            }
+        }
+
+        private void closeSelectors() throws IOException {
+            try {
+                if (readSelector != null) {
+                    readSelector.close();
+                }
+            } finally {
+                if (writeSelector != null) {
+                    writeSelector.close();
+                }
+            }
+        }
+
+        private class ChannelInputStream extends InputStream {
+
+            @Override
+            public int read() throws IOException {
+                final byte[] buffer = new byte[1];
+                final int count = read(buffer, 0, 1);
+                return count <= 0 ? -1 : buffer[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                synchronized (readLock) {
+                    final ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+                    final int timeout = soTimeout;
+                    final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+                    while (true) {
+                        ensureConnected();
+                        final int count = channel.read(buffer);
+                        if (count != 0) {
+                            return count;
+                        }
+                        final long remaining = deadline - System.nanoTime();
+                        if (timeout > 0 && remaining <= 0) {
+                            throw new SocketTimeoutException("Read timed out");
+                        }
+                        awaitSelection(readSelector, timeout == 0 ? 0 : Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining)));
+                    }
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                UnixDomainSocket.this.close();
+            }
+        }
+
+        private class ChannelOutputStream extends OutputStream {
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                synchronized (writeLock) {
+                    final ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+                    while (buffer.hasRemaining()) {
+                        ensureConnected();
+                        if (channel.write(buffer) == 0) {
+                            awaitSelection(writeSelector, 0);
+                        }
+                    }
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                UnixDomainSocket.this.close();
+            }
+        }
+    }
+}
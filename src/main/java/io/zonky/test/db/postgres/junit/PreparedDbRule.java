@@ -14,6 +14,7 @@
 package io.zonky.test.db.postgres.junit;
 
 import java.util.List;
+import java.util.Objects;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.function.Consumer;
 
@@ -22,7 +23,10 @@ import javax.sql.DataSource;
 import io.zonky.test.db.postgres.embedded.ConnectionInfo;
 import io.zonky.test.db.postgres.embedded.DatabasePreparer;
 import io.zonky.test.db.postgres.embedded.EmbeddedPostgres;
+import io.zonky.test.db.postgres.embedded.PrefetchConfig;
+import io.zonky.test.db.postgres.embedded.PreparedDatabase;
 import io.zonky.test.db.postgres.embedded.PreparedDbProvider;
+import io.zonky.test.db.postgres.embedded.ReleaseStrategy;
 import org.junit.rules.ExternalResource;
 
 public class PreparedDbRule extends ExternalResource {
@@ -31,8 +35,11 @@ public class PreparedDbRule extends ExternalResource {
     private volatile DataSource dataSource;
     private volatile PreparedDbProvider provider;
     private volatile ConnectionInfo connectionInfo;
+    private volatile PreparedDatabase database;
 
     private final List<Consumer<EmbeddedPostgres.Builder>> builderCustomizers = new CopyOnWriteArrayList<>();
+    private volatile PrefetchConfig prefetch = PrefetchConfig.defaults();
+    private volatile ReleaseStrategy releaseStrategy = ReleaseStrategy.DROP;
 
     protected PreparedDbRule(DatabasePreparer preparer) {
         if (preparer == null) {
@@ -49,15 +56,44 @@ public class PreparedDbRule extends ExternalResource {
         return this;
     }
 
+    /**
+     * Configures how many databases are prepared ahead of the tests, see {@link PrefetchConfig}.
+     */
+    public PreparedDbRule prefetch(PrefetchConfig prefetch) {
+        if (dataSource != null) {
+            throw new AssertionError("already started");
+        }
+        this.prefetch = Objects.requireNonNull(prefetch);
+        return this;
+    }
+
+    /**
+     * Configures what happens to the database of a finished test, see {@link ReleaseStrategy}.
+     * With {@link ReleaseStrategy#RESET}, the databases are reset and reused by the following tests,
+     * with {@link ReleaseStrategy#REUSE_UNMODIFIED}, only the databases of tests that did not modify them are reused.
+     */
+    public PreparedDbRule releaseStrategy(ReleaseStrategy releaseStrategy) {
+        if (dataSource != null) {
+            throw new AssertionError("already started");
+        }
+        this.releaseStrategy = Objects.requireNonNull(releaseStrategy);
+        return this;
+    }
+
     @Override
     protected void before() throws Throwable {
-        provider = PreparedDbProvider.forPreparer(preparer, builderCustomizers);
-        connectionInfo = provider.createNewDatabase();
-        dataSource = provider.createDataSourceFromConnectionInfo(connectionInfo);
+        provider = PreparedDbProvider.forPreparer(preparer, builderCustomizers, prefetch, releaseStrategy);
+        database = provider.leaseDatabase();
+        connectionInfo = database.getConnectionInfo();
+        dataSource = database.getDataSource();
     }
 
     @Override
     protected void after() {
+        if (database != null) {
+            database.close();
+        }
+        database = null;
         dataSource = null;
         connectionInfo = null;
         provider = null;
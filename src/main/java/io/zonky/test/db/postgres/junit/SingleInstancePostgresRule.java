@@ -16,7 +16,12 @@ package io.zonky.test.db.postgres.junit;
 import java.io.IOException;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.function.Consumer;
 
@@ -25,8 +30,11 @@ import org.junit.rules.ExternalResource;
 
 public class SingleInstancePostgresRule extends ExternalResource
 {
+    private static final Queue<CompletableFuture<Void>> PENDING_TEARDOWNS = new ConcurrentLinkedQueue<>();
+
     private volatile EmbeddedPostgres epg;
     private volatile Connection postgresConnection;
+    private volatile boolean fixedResources;
     private final List<Consumer<EmbeddedPostgres.Builder>> builderCustomizers = new CopyOnWriteArrayList<>();
 
     SingleInstancePostgresRule() { }
@@ -35,6 +43,7 @@ public class SingleInstancePostgresRule extends ExternalResource
     protected void before() throws Throwable
     {
         super.before();
+        reportFailedTeardowns();
         epg = pg();
         postgresConnection = epg.getPostgresDatabase().getConnection();
     }
@@ -42,6 +51,7 @@ public class SingleInstancePostgresRule extends ExternalResource
     private EmbeddedPostgres pg() throws IOException {
         final EmbeddedPostgres.Builder builder = EmbeddedPostgres.builder();
         builderCustomizers.forEach(c -> c.accept(builder));
+        fixedResources = builder.hasFixedPortOrDataDirectory();
         return builder.start();
     }
 
@@ -70,10 +80,35 @@ public class SingleInstancePostgresRule extends ExternalResource
         } catch (SQLException e) {
             throw new AssertionError(e);
         }
-        try {
-            epg.close();
-        } catch (IOException e) {
-            throw new AssertionError(e);
+        if (fixedResources) {
+            // the next test would start on the same port or data directory
+            try {
+                epg.close();
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+        } else {
+            // the cluster is torn down in the background, so that the next test does not wait for it,
+            // a failure of the teardown is reported by the next test using this rule
+            PENDING_TEARDOWNS.add(epg.closeAsync());
+        }
+    }
+
+    /**
+     * Reports teardowns started by previous tests that have failed in the meantime, without waiting for the others.
+     */
+    private static void reportFailedTeardowns()
+    {
+        for (Iterator<CompletableFuture<Void>> it = PENDING_TEARDOWNS.iterator(); it.hasNext(); ) {
+            final CompletableFuture<Void> teardown = it.next();
+            if (teardown.isDone()) {
+                it.remove();
+                try {
+                    teardown.join();
+                } catch (CompletionException e) {
+                    throw new AssertionError("Teardown of a previous cluster failed", e.getCause());
+                }
+            }
         }
     }
 }
@@ -16,11 +16,15 @@ package io.zonky.test.db.postgres.junit5;
 import io.zonky.test.db.postgres.embedded.ConnectionInfo;
 import io.zonky.test.db.postgres.embedded.DatabasePreparer;
 import io.zonky.test.db.postgres.embedded.EmbeddedPostgres;
+import io.zonky.test.db.postgres.embedded.PrefetchConfig;
+import io.zonky.test.db.postgres.embedded.PreparedDatabase;
 import io.zonky.test.db.postgres.embedded.PreparedDbProvider;
+import io.zonky.test.db.postgres.embedded.ReleaseStrategy;
 import org.junit.jupiter.api.extension.*;
 
 import javax.sql.DataSource;
 import java.util.List;
+import java.util.Objects;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.function.Consumer;
 
@@ -31,8 +35,11 @@ public class PreparedDbExtension implements BeforeAllCallback, AfterAllCallback,
     private volatile DataSource dataSource;
     private volatile PreparedDbProvider provider;
     private volatile ConnectionInfo connectionInfo;
+    private volatile PreparedDatabase database;
 
     private final List<Consumer<EmbeddedPostgres.Builder>> builderCustomizers = new CopyOnWriteArrayList<>();
+    private volatile PrefetchConfig prefetch = PrefetchConfig.defaults();
+    private volatile ReleaseStrategy releaseStrategy = ReleaseStrategy.DROP;
 
     PreparedDbExtension(DatabasePreparer preparer) {
         if (preparer == null) {
@@ -49,16 +56,45 @@ public class PreparedDbExtension implements BeforeAllCallback, AfterAllCallback,
         return this;
     }
 
+    /**
+     * Configures how many databases are prepared ahead of the tests, see {@link PrefetchConfig}.
+     */
+    public PreparedDbExtension prefetch(PrefetchConfig prefetch) {
+        if (dataSource != null) {
+            throw new AssertionError("already started");
+        }
+        this.prefetch = Objects.requireNonNull(prefetch);
+        return this;
+    }
+
+    /**
+     * Configures what happens to the database of a finished test, see {@link ReleaseStrategy}.
+     * With {@link ReleaseStrategy#RESET}, the databases are reset and reused by the following tests,
+     * with {@link ReleaseStrategy#REUSE_UNMODIFIED}, only the databases of tests that did not modify them are reused.
+     */
+    public PreparedDbExtension releaseStrategy(ReleaseStrategy releaseStrategy) {
+        if (dataSource != null) {
+            throw new AssertionError("already started");
+        }
+        this.releaseStrategy = Objects.requireNonNull(releaseStrategy);
+        return this;
+    }
+
     @Override
     public void beforeAll(ExtensionContext extensionContext) throws Exception {
-        provider = PreparedDbProvider.forPreparer(preparer, builderCustomizers);
-        connectionInfo = provider.createNewDatabase();
-        dataSource = provider.createDataSourceFromConnectionInfo(connectionInfo);
+        provider = PreparedDbProvider.forPreparer(preparer, builderCustomizers, prefetch, releaseStrategy);
+        database = provider.leaseDatabase();
+        connectionInfo = database.getConnectionInfo();
+        dataSource = database.getDataSource();
         perClass = true;
     }
 
     @Override
     public void afterAll(ExtensionContext extensionContext) {
+        if (database != null) {
+            database.close();
+        }
+        database = null;
         dataSource = null;
         connectionInfo = null;
         provider = null;
@@ -68,15 +104,20 @@ public class PreparedDbExtension implements BeforeAllCallback, AfterAllCallback,
     @Override
     public void beforeEach(ExtensionContext extensionContext) throws Exception {
         if (!perClass) {
-            provider = PreparedDbProvider.forPreparer(preparer, builderCustomizers);
-            connectionInfo = provider.createNewDatabase();
-            dataSource = provider.createDataSourceFromConnectionInfo(connectionInfo);
+            provider = PreparedDbProvider.forPreparer(preparer, builderCustomizers, prefetch, releaseStrategy);
+            database = provider.leaseDatabase();
+            connectionInfo = database.getConnectionInfo();
+            dataSource = database.getDataSource();
         }
     }
 
     @Override
     public void afterEach(ExtensionContext extensionContext) {
         if (!perClass) {
+            if (database != null) {
+                database.close();
+            }
+            database = null;
             dataSource = null;
             connectionInfo = null;
             provider = null;
@@ -22,13 +22,18 @@ import java.io.IOException;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.function.Consumer;
 
 public class SingleInstancePostgresExtension implements AfterTestExecutionCallback, BeforeTestExecutionCallback {
 
+    private static final ExtensionContext.Namespace NAMESPACE = ExtensionContext.Namespace.create(SingleInstancePostgresExtension.class);
+
     private volatile EmbeddedPostgres epg;
     private volatile Connection postgresConnection;
+    private volatile boolean fixedResources;
     private final List<Consumer<EmbeddedPostgres.Builder>> builderCustomizers = new CopyOnWriteArrayList<>();
 
     SingleInstancePostgresExtension() { }
@@ -42,6 +47,7 @@ public class SingleInstancePostgresExtension implements AfterTestExecutionCallba
     private EmbeddedPostgres pg() throws IOException {
         final EmbeddedPostgres.Builder builder = EmbeddedPostgres.builder();
         builderCustomizers.forEach(c -> c.accept(builder));
+        fixedResources = builder.hasFixedPortOrDataDirectory();
         return builder.start();
     }
 
@@ -69,10 +75,45 @@ public class SingleInstancePostgresExtension implements AfterTestExecutionCallba
         } catch (SQLException e) {
             throw new AssertionError(e);
         }
-        try {
-            epg.close();
-        } catch (IOException e) {
-            throw new AssertionError(e);
+        if (fixedResources) {
+            // the next test would start on the same port or data directory
+            try {
+                epg.close();
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+        } else {
+            // the cluster is torn down in the background, so that the next test does not wait for it,
+            // the teardown is awaited and its failure reported once all tests of the class have finished
+            getClassContext(extensionContext).getStore(NAMESPACE)
+                    .getOrComputeIfAbsent(PendingTeardowns.class, key -> new PendingTeardowns(), PendingTeardowns.class)
+                    .add(epg.closeAsync());
+        }
+    }
+
+    private static ExtensionContext getClassContext(ExtensionContext context) {
+        ExtensionContext classContext = context;
+        while (classContext.getTestMethod().isPresent() && classContext.getParent().isPresent()) {
+            classContext = classContext.getParent().get();
+        }
+        return classContext;
+    }
+
+    private static class PendingTeardowns implements ExtensionContext.Store.CloseableResource, AutoCloseable {
+
+        private final List<CompletableFuture<Void>> teardowns = new CopyOnWriteArrayList<>();
+
+        void add(CompletableFuture<Void> teardown) {
+            teardowns.add(teardown);
+        }
+
+        @Override
+        public void close() {
+            try {
+                CompletableFuture.allOf(teardowns.toArray(new CompletableFuture<?>[0])).join();
+            } catch (CompletionException e) {
+                throw new AssertionError(e.getCause());
+            }
         }
     }
 }
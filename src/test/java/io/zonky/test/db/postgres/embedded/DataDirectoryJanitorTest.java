@@ -0,0 +1,98 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.zonky.test.db.postgres.embedded;
+
+import static java.nio.file.StandardOpenOption.WRITE;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class DataDirectoryJanitorTest
+{
+    @TempDir
+    public Path tf;
+
+    @Test
+    public void testClean() throws IOException
+    {
+        Path stale = dataDirectory("stale", TimeUnit.HOURS.toMillis(1));
+        Path running = dataDirectory("running", TimeUnit.HOURS.toMillis(1));
+        Path fresh = dataDirectory("fresh", 0);
+        Path other = Files.createDirectories(tf.resolve("PG-binaries"));
+        Files.createFile(stale.resolve("postmaster.pid"));
+
+        List<Path> stopped = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(running.resolve(EmbeddedPostgres.LOCK_FILE_NAME), WRITE);
+             FileLock lock = channel.tryLock()) {
+            DataDirectoryJanitor.clean(tf.toFile(), dir -> stopped.add(dir.toPath()));
+        }
+
+        assertFalse(Files.exists(stale));
+        assertTrue(Files.exists(running));
+        assertTrue(Files.exists(fresh));
+        assertTrue(Files.exists(other));
+        assertEquals(1, stopped.size());
+        assertEquals(stale, stopped.get(0));
+        assertEquals(3, Files.readAllLines(tf.resolve(".epg-janitor")).size());
+    }
+
+    @Test
+    public void testCleanIsRateLimited() throws IOException
+    {
+        DataDirectoryJanitor.clean(tf.toFile(), dir -> { });
+        Path stale = dataDirectory("stale", TimeUnit.HOURS.toMillis(1));
+
+        DataDirectoryJanitor.clean(tf.toFile(), dir -> { });
+        assertTrue(Files.exists(stale));
+
+        assertTrue(tf.resolve(".epg-janitor").toFile().setLastModified(System.currentTimeMillis() - TimeUnit.HOURS.toMillis(1)));
+        DataDirectoryJanitor.clean(tf.toFile(), dir -> { });
+        assertFalse(Files.exists(stale));
+    }
+
+    @Test
+    public void testCleanKeepsPreparedTemplateCache() throws Exception
+    {
+        File entry = TemplateCache.getOrCreate(EmbeddedPostgres.builder().setOverrideWorkingDirectory(tf.toFile()), "janitor", pg -> { });
+        long lastUsed = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(1);
+        try (Stream<Path> files = Files.walk(entry.toPath())) {
+            files.forEach(file -> assertTrue(file.toFile().setLastModified(lastUsed)));
+        }
+
+        DataDirectoryJanitor.clean(tf.toFile(), dir -> { });
+        assertTrue(Files.exists(entry.toPath().resolve("PG_VERSION")));
+    }
+
+    private Path dataDirectory(String name, long age) throws IOException
+    {
+        Path dir = Files.createDirectories(tf.resolve(name));
+        Path lockFile = Files.createFile(dir.resolve(EmbeddedPostgres.LOCK_FILE_NAME));
+        assertTrue(lockFile.toFile().setLastModified(System.currentTimeMillis() - age));
+        return dir;
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.zonky.test.db.postgres.embedded;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Random;
+
+import org.apache.commons.lang3.SystemUtils;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class DefaultDataDirectoryClonerTest
+{
+    @TempDir
+    public Path tf;
+
+    @Test
+    public void testCloneDirectory() throws IOException
+    {
+        Path source = Files.createDirectories(tf.resolve("source"));
+        Path target = Files.createDirectories(tf.resolve("target"));
+
+        byte[] large = new byte[20 * 1024 * 1024 + 123];
+        new Random(42).nextBytes(large);
+        Files.write(Files.createDirectories(source.resolve("base/1")).resolve("1259"), large);
+        Files.write(source.resolve("PG_VERSION"), "14\n".getBytes());
+        Files.createFile(source.resolve("postmaster.opts"));
+        Files.createDirectories(source.resolve("pg_tblspc"));
+        if (!SystemUtils.IS_OS_WINDOWS) {
+            Files.setPosixFilePermissions(source.resolve("PG_VERSION"), PosixFilePermissions.fromString("rw-------"));
+        }
+
+        DefaultDataDirectoryCloner.INSTANCE.cloneDirectory(source, target);
+
+        assertArrayEquals(large, Files.readAllBytes(target.resolve("base/1/1259")));
+        assertEquals("14\n", new String(Files.readAllBytes(target.resolve("PG_VERSION"))));
+        assertEquals(0, Files.size(target.resolve("postmaster.opts")));
+        assertTrue(Files.isDirectory(target.resolve("pg_tblspc")));
+        if (!SystemUtils.IS_OS_WINDOWS) {
+            assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(target.resolve("PG_VERSION"))));
+        }
+    }
+}
@@ -15,16 +15,36 @@ package io.zonky.test.db.postgres.embedded;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeFalse;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.sql.Connection;
 import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.sql.Statement;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.apache.commons.lang3.SystemUtils;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
 
@@ -46,6 +66,247 @@ public class EmbeddedPostgresTest
         }
     }
 
+    @Test
+    public void testBinariesIndexSkipsArchive() throws Exception
+    {
+        File workingDir = tf.resolve("working-dir").toFile();
+        CountingResolver first = new CountingResolver();
+        CountingResolver second = new CountingResolver();
+
+        try (EmbeddedPostgres pg = EmbeddedPostgres.builder().setOverrideWorkingDirectory(workingDir).setPgBinaryResolver(first).start()) {
+            assertEquals(1, first.archiveReads.get());
+        }
+        try (EmbeddedPostgres pg = EmbeddedPostgres.builder().setOverrideWorkingDirectory(workingDir).setPgBinaryResolver(second).start()) {
+            assertEquals(0, second.archiveReads.get());
+        }
+    }
+
+    @Test
+    public void testBinariesDirectory() throws Exception
+    {
+        File workingDir = tf.resolve("working-dir").toFile();
+        try (EmbeddedPostgres pg = EmbeddedPostgres.builder().setOverrideWorkingDirectory(workingDir).setPgBinaryResolver(new CountingResolver()).start()) {
+            assertTrue(pg.getPort() > 0);
+        }
+        File[] pgDirs = workingDir.listFiles(file -> file.isDirectory() && file.getName().startsWith("PG-"));
+        assertEquals(1, pgDirs.length);
+
+        try (EmbeddedPostgres pg = EmbeddedPostgres.builder().setBinariesDirectory(pgDirs[0]).start();
+             Connection c = pg.getPostgresDatabase().getConnection();
+             Statement s = c.createStatement();
+             ResultSet rs = s.executeQuery("SELECT 1")) {
+            assertTrue(rs.next());
+        }
+
+        assertThrows(IllegalStateException.class, () -> EmbeddedPostgres.builder().setBinariesDirectory(workingDir).start());
+    }
+
+    @Test
+    public void testInitDbCache() throws Exception
+    {
+        File workingDir = Files.createDirectories(tf.resolve("working-dir")).toFile();
+        try (EmbeddedPostgres pg = EmbeddedPostgres.builder().setOverrideWorkingDirectory(workingDir).setUseInitDbCache(false).start()) {
+            assertEquals(0, workingDir.listFiles(file -> file.getName().startsWith("initdb-")).length);
+        }
+        File unusedCache = Files.createDirectories(workingDir.toPath().resolve("initdb-unused")).toFile();
+        assertTrue(unusedCache.setLastModified(System.currentTimeMillis() - 8L * 24 * 60 * 60 * 1000));
+        for (int i = 0; i < 2; i++) {
+            try (EmbeddedPostgres pg = EmbeddedPostgres.builder().setOverrideWorkingDirectory(workingDir).start();
+                 Connection c = pg.getPostgresDatabase().getConnection();
+                 Statement s = c.createStatement();
+                 ResultSet rs = s.executeQuery("SELECT 1")) {
+                assertTrue(rs.next());
+            }
+            assertEquals(1, workingDir.listFiles(file -> file.isDirectory() && file.getName().startsWith("initdb-")).length);
+        }
+        assertFalse(unusedCache.exists());
+    }
+
+    @Test
+    public void testEphemeralProfile() throws Exception
+    {
+        try (EmbeddedPostgres pg = EmbeddedPostgres.builder().useEphemeralProfile().start();
+             Connection c = pg.getPostgresDatabase().getConnection();
+             Statement s = c.createStatement()) {
+            assertEquals("off", showSetting(s, "full_page_writes"));
+            assertEquals("minimal", showSetting(s, "wal_level"));
+            assertEquals("C", showSetting(s, "lc_collate"));
+        }
+    }
+
+    @Test
+    public void testMemoryStorage() throws Exception
+    {
+        Path shm = Paths.get("/dev/shm");
+        assumeTrue(Files.isDirectory(shm) && "tmpfs".equals(Files.getFileStore(shm).type()));
+
+        Path dataDir;
+        try (EmbeddedPostgres pg = EmbeddedPostgres.builder().setStorage(Storage.MEMORY).start();
+             Connection c = pg.getPostgresDatabase().getConnection();
+             Statement s = c.createStatement()) {
+            dataDir = Paths.get(showSetting(s, "data_directory"));
+            assertEquals(shm.resolve("embedded-pg"), dataDir.getParent());
+        }
+        assertFalse(Files.exists(dataDir));
+    }
+
+    @Test
+    public void testMemoryStorageWithDataDirectoryCustomizer() throws Exception
+    {
+        Path shm = Paths.get("/dev/shm");
+        assumeTrue(Files.isDirectory(shm) && "tmpfs".equals(Files.getFileStore(shm).type()));
+
+        List<Path> customized = new ArrayList<>();
+        try (EmbeddedPostgres pg = EmbeddedPostgres.builder()
+                .setStorage(Storage.MEMORY)
+                .setDataDirectoryCustomizer(dd -> {
+                    assertTrue(Files.isRegularFile(dd.toPath().resolve("postgresql.conf")));
+                    customized.add(dd.toPath());
+                })
+                .start();
+             Connection c = pg.getPostgresDatabase().getConnection();
+             Statement s = c.createStatement()) {
+            assertEquals(Collections.singletonList(Paths.get(showSetting(s, "data_directory"))), customized);
+        }
+    }
+
+    @Test
+    public void testFailedStartup()
+    {
+        long start = System.nanoTime();
+        IOException e = assertThrows(IOException.class, () -> EmbeddedPostgres.builder()
+                .setServerConfig("nonexistent_parameter", "1")
+                .setPGStartupWait(Duration.ofMinutes(1))
+                .start());
+
+        assertTrue(Duration.ofNanos(System.nanoTime() - start).getSeconds() < 30);
+        assertTrue(e.getMessage().contains("unrecognized configuration parameter"), e.getMessage());
+    }
+
+    @Test
+    public void testDirectLaunch() throws Exception
+    {
+        assumeFalse(SystemUtils.IS_OS_WINDOWS);
+
+        Process process;
+        try (EmbeddedPostgres pg = EmbeddedPostgres.builder().setDirectLaunch(true).start();
+             Connection c = pg.getPostgresDatabase().getConnection();
+             Statement s = c.createStatement();
+             ResultSet rs = s.executeQuery("SELECT pg_postmaster_start_time() IS NOT NULL")) {
+            assertTrue(rs.next());
+            process = pg.getProcess();
+            Path pidFile = Paths.get(showSetting(c.createStatement(), "data_directory")).resolve("postmaster.pid");
+            assertEquals(String.valueOf(ProcessSignals.pid(process)), Files.readAllLines(pidFile).get(0));
+        }
+        assertFalse(process.isAlive());
+        assertEquals(0, process.exitValue());
+    }
+
+    @Test
+    public void testUnixSocket() throws Exception
+    {
+        assumeTrue(UnixDomainSocketFactory.isSupported());
+
+        try (EmbeddedPostgres pg = EmbeddedPostgres.start();
+             Connection c = pg.getPostgresDatabase().getConnection();
+             Statement s = c.createStatement();
+             ResultSet rs = s.executeQuery("SELECT inet_client_addr() IS NULL")) {
+            assertTrue(Files.exists(Paths.get(pg.getUnixSocketPath())));
+            assertTrue(rs.next());
+            assertTrue(rs.getBoolean(1));
+        }
+        try (EmbeddedPostgres pg = EmbeddedPostgres.builder().setUseUnixSocket(false).start();
+             Connection c = pg.getPostgresDatabase().getConnection();
+             Statement s = c.createStatement();
+             ResultSet rs = s.executeQuery("SELECT inet_client_addr() IS NULL")) {
+            assertTrue(rs.next());
+            assertFalse(rs.getBoolean(1));
+        }
+    }
+
+    @Test
+    public void testUnixSocketDisabled() throws Exception
+    {
+        for (boolean directLaunch : new boolean[] { false, true }) {
+            try (EmbeddedPostgres pg = EmbeddedPostgres.builder().setUseUnixSocket(false).setDirectLaunch(directLaunch).start();
+                 Connection c = pg.getPostgresDatabase().getConnection();
+                 Statement s = c.createStatement()) {
+                assertNull(pg.getUnixSocketPath());
+                // the compiled-in directory is kept if usable, otherwise no socket is created
+                String directories = showSetting(s, "unix_socket_directories");
+                assertTrue(directories.isEmpty() || Arrays.stream(directories.split(","))
+                        .anyMatch(directory -> Files.isWritable(Paths.get(directory.trim()))), directories);
+            }
+        }
+    }
+
+    @Test
+    public void testStartAsync() throws Exception
+    {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            CompletableFuture<EmbeddedPostgres> future = EmbeddedPostgres.builder().startAsync(executor);
+            try (EmbeddedPostgres pg = future.get(1, TimeUnit.MINUTES);
+                 Connection c = pg.getPostgresDatabase().getConnection();
+                 Statement s = c.createStatement();
+                 ResultSet rs = s.executeQuery("SELECT 1")) {
+                assertTrue(rs.next());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testCancelStartAsync() throws Exception
+    {
+        Path dataDir = Files.createDirectories(tf.resolve("data-dir"));
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        CountDownLatch customizing = new CountDownLatch(1);
+        CompletableFuture<EmbeddedPostgres> future = EmbeddedPostgres.builder()
+                .setDataDirectory(dataDir)
+                .setDataDirectoryCustomizer(dir -> {
+                    customizing.countDown();
+                    try {
+                        Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                })
+                .startAsync(executor);
+        assertTrue(customizing.await(1, TimeUnit.MINUTES));
+        assertTrue(future.cancel(true));
+
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+        assertTrue(future.isCancelled());
+        assertFalse(Files.exists(dataDir));
+    }
+
+    @Test
+    public void testCloseAsync() throws Exception
+    {
+        EmbeddedPostgres pg = EmbeddedPostgres.start();
+        Path dataDir;
+        try (Connection c = pg.getPostgresDatabase().getConnection();
+             Statement s = c.createStatement()) {
+            dataDir = Paths.get(showSetting(s, "data_directory"));
+        }
+
+        CompletableFuture<Void> teardown = pg.closeAsync();
+        assertEquals(teardown, pg.closeAsync());
+        teardown.get(1, TimeUnit.MINUTES);
+        assertFalse(Files.exists(dataDir));
+    }
+
+    private static String showSetting(Statement s, String name) throws SQLException
+    {
+        try (ResultSet rs = s.executeQuery("SHOW " + name)) {
+            assertTrue(rs.next());
+            return rs.getString(1);
+        }
+    }
+
     @Test
     public void testEmbeddedPgCreationWithNestedDataDirectory() throws Exception
     {
@@ -73,4 +334,22 @@ public class EmbeddedPostgresTest
             }
         }
     }
+
+    private static class CountingResolver implements PgBinaryResolver
+    {
+        private final AtomicInteger archiveReads = new AtomicInteger();
+
+        @Override
+        public InputStream getPgBinary(String system, String machineHardware) throws IOException
+        {
+            archiveReads.incrementAndGet();
+            return DefaultPostgresBinaryResolver.INSTANCE.getPgBinary(system, machineHardware);
+        }
+
+        @Override
+        public String getPgBinaryCacheKey(String system, String machineHardware) throws IOException
+        {
+            return DefaultPostgresBinaryResolver.INSTANCE.getPgBinaryCacheKey(system, machineHardware);
+        }
+    }
 }
@@ -0,0 +1,86 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.zonky.test.db.postgres.embedded;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.XZOutputStream;
+
+public class ParallelXzInputStreamTest
+{
+    @TempDir
+    public Path tf;
+
+    @Test
+    public void testMultiBlockArchive() throws Exception
+    {
+        byte[] content = randomContent(5 * 1024 * 1024);
+        File archive = compress(content, 512 * 1024);
+
+        try (InputStream in = ParallelXzInputStream.open(archive, 4)) {
+            assertTrue(in instanceof ParallelXzInputStream);
+            assertArrayEquals(content, IOUtils.toByteArray(in));
+        }
+    }
+
+    @Test
+    public void testSingleBlockArchive() throws Exception
+    {
+        byte[] content = randomContent(1024 * 1024);
+        File archive = compress(content, content.length);
+
+        try (InputStream in = ParallelXzInputStream.open(archive, 4)) {
+            assertFalse(in instanceof ParallelXzInputStream);
+            assertArrayEquals(content, IOUtils.toByteArray(in));
+        }
+    }
+
+    private File compress(byte[] content, int blockSize) throws IOException
+    {
+        File archive = tf.resolve("archive.xz").toFile();
+        try (OutputStream out = Files.newOutputStream(archive.toPath());
+             XZOutputStream xzOut = new XZOutputStream(out, new LZMA2Options(1))) {
+            for (int offset = 0; offset < content.length; offset += blockSize) {
+                xzOut.write(content, offset, Math.min(blockSize, content.length - offset));
+                xzOut.endBlock();
+            }
+        }
+        return archive;
+    }
+
+    private static byte[] randomContent(int size)
+    {
+        // a limited alphabet keeps the data compressible, like the real binaries
+        Random random = new Random(42);
+        byte[] content = new byte[size];
+        for (int i = 0; i < size; i++) {
+            content[i] = (byte) ('a' + random.nextInt(8));
+        }
+        return content;
+    }
+}
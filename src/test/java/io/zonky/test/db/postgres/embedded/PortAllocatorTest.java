@@ -0,0 +1,71 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.zonky.test.db.postgres.embedded;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class PortAllocatorTest
+{
+    @TempDir
+    public Path tf;
+
+    @Test
+    public void testReservedPortsAreDistinct() throws IOException
+    {
+        PortAllocator allocator = PortAllocator.forWorkingDirectory(tf.toFile());
+        List<PortAllocator.Reservation> reservations = new ArrayList<>();
+        Set<Integer> ports = new HashSet<>();
+        try {
+            for (int i = 0; i < 20; i++) {
+                PortAllocator.Reservation reservation = allocator.reserve();
+                reservations.add(reservation);
+                assertTrue(ports.add(reservation.getPort()));
+            }
+            assertEquals(20, tf.resolve("ports").toFile().list().length);
+        } finally {
+            for (PortAllocator.Reservation reservation : reservations) {
+                reservation.close();
+            }
+        }
+    }
+
+    @Test
+    public void testReservedAndReleasedPortsAreSkipped() throws IOException
+    {
+        PortAllocator allocator = PortAllocator.forWorkingDirectory(tf.toFile());
+        PortAllocator.Reservation reservation = allocator.reserve();
+        int port = reservation.getPort();
+
+        assertNull(allocator.tryReserve(port));
+        reservation.close();
+        assertNull(allocator.tryReserve(port));
+
+        PortAllocator.Reservation other = PortAllocator.forWorkingDirectory(tf.resolve("other").toFile()).reserve();
+        assertNotNull(other);
+        other.close();
+    }
+}
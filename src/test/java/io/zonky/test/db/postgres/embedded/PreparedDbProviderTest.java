@@ -0,0 +1,372 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.zonky.test.db.postgres.embedded;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import javax.sql.DataSource;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class PreparedDbProviderTest
+{
+    @Test
+    public void testPrefetch() throws Exception
+    {
+        PreparedDbProvider provider = PreparedDbProvider.forPreparer(ds -> {}, Collections.emptyList(), PrefetchConfig.of(3, 5, 2));
+        Set<String> databases = ConcurrentHashMap.newKeySet();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < 12; i++) {
+                futures.add(executor.submit(() -> {
+                    ConnectionInfo info = provider.createNewDatabase();
+                    try (Connection c = provider.createDataSourceFromConnectionInfo(info).getConnection();
+                         Statement s = c.createStatement();
+                         ResultSet rs = s.executeQuery("SELECT current_database()")) {
+                        rs.next();
+                        databases.add(rs.getString(1));
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(12, databases.size());
+    }
+
+    @Test
+    public void testPrefetchConfigValidation()
+    {
+        assertThrows(IllegalArgumentException.class, () -> PrefetchConfig.of(0, 2, 1));
+        assertThrows(IllegalArgumentException.class, () -> PrefetchConfig.of(1, 0, 0));
+        assertThrows(IllegalArgumentException.class, () -> PrefetchConfig.of(1, 2, 2));
+        assertEquals(PrefetchConfig.of(1, 1, 0), PrefetchConfig.defaults());
+    }
+
+    @Test
+    public void testCreateDatabaseStrategy() throws Exception
+    {
+        DatabasePreparer preparer = ds -> {
+            try (Connection c = ds.getConnection(); Statement s = c.createStatement()) {
+                s.execute("CREATE TABLE prepared (id int)");
+            }
+        };
+        PreparedDbProvider provider = PreparedDbProvider.forPreparer(preparer,
+                Collections.singletonList(builder -> builder.setCreateDatabaseStrategy(CreateDatabaseStrategy.AUTO)));
+        try (Connection c = provider.createDataSource().getConnection();
+             Statement s = c.createStatement();
+             ResultSet rs = s.executeQuery("SELECT count(*) FROM prepared")) {
+            rs.next();
+            assertEquals(0, rs.getInt(1));
+        }
+    }
+
+    @Test
+    public void testLeaseDatabase() throws Exception
+    {
+        PreparedDbProvider provider = PreparedDbProvider.forPreparer(ds -> {});
+        try (PreparedDatabase observer = provider.leaseDatabase()) {
+            PreparedDatabase leased = provider.leaseDatabase();
+            String dbName = leased.getConnectionInfo().getDbName();
+            // an open connection must not prevent the drop
+            try (Connection c = leased.getDataSource().getConnection()) {
+                leased.close();
+                leased.close();
+
+                long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+                while (databaseExists(observer.getDataSource(), dbName)) {
+                    assertTrue(System.nanoTime() < deadline, "the released database has not been dropped");
+                    Thread.sleep(10);
+                }
+                assertTrue(c.isClosed() || !c.isValid(1));
+            }
+        }
+    }
+
+    @Test
+    public void testSharedCluster() throws Exception
+    {
+        Consumer<EmbeddedPostgres.Builder> customizer = builder -> builder.setServerConfig("application_name", "shared-cluster");
+        PreparedDbProvider first = PreparedDbProvider.forPreparer(tablePreparer("first"), Collections.singletonList(customizer));
+        PreparedDbProvider second = PreparedDbProvider.forPreparer(tablePreparer("second"), Collections.singletonList(customizer));
+
+        ConnectionInfo firstInfo = first.createNewDatabase();
+        ConnectionInfo secondInfo = second.createNewDatabase();
+        assertEquals(firstInfo.getPort(), secondInfo.getPort());
+        assertEquals(Collections.singletonList("first"), listTables(first.createDataSourceFromConnectionInfo(firstInfo)));
+        assertEquals(Collections.singletonList("second"), listTables(second.createDataSourceFromConnectionInfo(secondInfo)));
+    }
+
+    @Test
+    public void testPreparedTemplateCache(@TempDir Path workingDir) throws Exception
+    {
+        AtomicInteger preparations = new AtomicInteger();
+        String cacheKey = UUID.randomUUID().toString();
+        CacheableDatabasePreparer preparer = new CacheableDatabasePreparer() {
+            @Override
+            public void prepare(DataSource ds) throws SQLException {
+                preparations.incrementAndGet();
+                tablePreparer("cached").prepare(ds);
+            }
+
+            @Override
+            public String getCacheKey() {
+                return cacheKey;
+            }
+        };
+        List<Consumer<EmbeddedPostgres.Builder>> customizers = Collections.singletonList(builder -> builder
+                .setOverrideWorkingDirectory(workingDir.toFile())
+                .setUsePreparedTemplateCache(true));
+
+        PreparedDbProvider first = PreparedDbProvider.forPreparer(preparer, customizers);
+        assertEquals(Collections.singletonList("cached"), listTables(first.createDataSource()));
+        // another pipeline with the same preparer is started from the cached template
+        PreparedDbProvider second = PreparedDbProvider.forPreparer(preparer, customizers, PrefetchConfig.of(1, 1, 0));
+        assertEquals(Collections.singletonList("cached"), listTables(second.createDataSource()));
+        assertEquals(1, preparations.get());
+    }
+
+    @Test
+    public void testLayeredPreparer() throws Exception
+    {
+        AtomicInteger basePreparations = new AtomicInteger();
+        DatabasePreparer base = ds -> {
+            basePreparations.incrementAndGet();
+            tablePreparer("base").prepare(ds);
+        };
+        PreparedDbProvider first = PreparedDbProvider.forPreparer(LayeredPreparer.of(base, tablePreparer("first_layer")));
+        PreparedDbProvider second = PreparedDbProvider.forPreparer(LayeredPreparer.of(base, tablePreparer("second_layer")));
+
+        assertEquals(Arrays.asList("base", "first_layer"), listTables(first.createDataSource()));
+        assertEquals(Arrays.asList("base", "second_layer"), listTables(second.createDataSource()));
+        assertEquals(1, basePreparations.get());
+    }
+
+    @Test
+    public void testResetDatabase() throws Exception
+    {
+        DatabasePreparer preparer = ds -> {
+            try (Connection c = ds.getConnection(); Statement s = c.createStatement()) {
+                s.execute("CREATE TABLE parent (id int GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY, name text, upper_name text GENERATED ALWAYS AS (upper(name)) STORED)");
+                s.execute("CREATE TABLE child (parent_id int REFERENCES parent)");
+                s.execute("CREATE TABLE untouched (id int)");
+                s.execute("INSERT INTO parent (name) VALUES ('one')");
+                s.execute("INSERT INTO untouched VALUES (1)");
+            }
+        };
+        PreparedDbProvider provider = PreparedDbProvider.forPreparer(preparer, Collections.emptyList(), PrefetchConfig.of(1, 1, 0), ReleaseStrategy.RESET);
+
+        PreparedDatabase modified = provider.leaseDatabase();
+        String dbName = modified.getConnectionInfo().getDbName();
+        try (Connection c = modified.getDataSource().getConnection(); Statement s = c.createStatement()) {
+            s.execute("INSERT INTO parent (name) VALUES ('two')");
+            s.execute("UPDATE parent SET name = 'uno' WHERE id = 1");
+            s.execute("INSERT INTO child VALUES (1)");
+        }
+        modified.close();
+
+        List<PreparedDatabase> leases = new ArrayList<>();
+        try {
+            PreparedDatabase reset = leaseDatabase(provider, dbName, leases);
+            try (Connection c = reset.getDataSource().getConnection(); Statement s = c.createStatement()) {
+                assertEquals(Collections.singletonList("1 one ONE"), query(s, "SELECT id || ' ' || name || ' ' || upper_name FROM parent"));
+                assertEquals(Collections.emptyList(), query(s, "SELECT parent_id FROM child"));
+                assertEquals(Collections.singletonList("1"), query(s, "SELECT id FROM untouched"));
+                // the sequences are restored as well
+                assertEquals(Collections.singletonList("2"), query(s, "INSERT INTO parent (name) VALUES ('two') RETURNING id"));
+                // a database with a modified schema cannot be reset
+                s.execute("CREATE TABLE created (id int)");
+            }
+            leases.remove(reset);
+            reset.close();
+
+            PreparedDatabase observer = provider.leaseDatabase();
+            leases.add(observer);
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (databaseExists(observer.getDataSource(), dbName)) {
+                assertTrue(System.nanoTime() < deadline, "the modified database has not been dropped");
+                Thread.sleep(10);
+            }
+        } finally {
+            leases.forEach(PreparedDatabase::close);
+        }
+    }
+
+    @Test
+    public void testReuseUnmodifiedDatabase() throws Exception
+    {
+        PreparedDbProvider provider = PreparedDbProvider.forPreparer(tablePreparer("reused"), Collections.emptyList(),
+                PrefetchConfig.of(1, 1, 0), ReleaseStrategy.REUSE_UNMODIFIED);
+
+        PreparedDatabase unmodified = provider.leaseDatabase();
+        String dbName = unmodified.getConnectionInfo().getDbName();
+        // the connections left open are terminated
+        try (Connection c = unmodified.getDataSource().getConnection(); Statement s = c.createStatement()) {
+            assertEquals(Collections.emptyList(), query(s, "SELECT id FROM reused"));
+            unmodified.close();
+        }
+
+        List<PreparedDatabase> leases = new ArrayList<>();
+        try {
+            PreparedDatabase reused = leaseDatabase(provider, dbName, leases);
+            assertEquals(1, provider.getReusedDatabaseCount());
+            try (Connection c = reused.getDataSource().getConnection(); Statement s = c.createStatement()) {
+                s.execute("INSERT INTO reused VALUES (1)");
+            }
+            leases.remove(reused);
+            reused.close();
+
+            PreparedDatabase observer = provider.leaseDatabase();
+            leases.add(observer);
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (databaseExists(observer.getDataSource(), dbName)) {
+                assertTrue(System.nanoTime() < deadline, "the modified database has not been dropped");
+                Thread.sleep(10);
+            }
+            assertEquals(1, provider.getReusedDatabaseCount());
+        } finally {
+            leases.forEach(PreparedDatabase::close);
+        }
+    }
+
+    @Test
+    public void testReuseDatabaseWithAdvancedSequence() throws Exception
+    {
+        PreparedDbProvider provider = PreparedDbProvider.forPreparer(ds -> {
+            try (Connection c = ds.getConnection(); Statement s = c.createStatement()) {
+                s.execute("CREATE SEQUENCE reused_seq");
+            }
+        }, Collections.emptyList(), PrefetchConfig.of(1, 1, 0), ReleaseStrategy.REUSE_UNMODIFIED);
+
+        PreparedDatabase unmodified = provider.leaseDatabase();
+        String dbName = unmodified.getConnectionInfo().getDbName();
+        unmodified.close();
+
+        List<PreparedDatabase> leases = new ArrayList<>();
+        try {
+            PreparedDatabase reused = leaseDatabase(provider, dbName, leases);
+            assertEquals(1, provider.getReusedDatabaseCount());
+            // nextval is not counted in pg_stat_database
+            try (Connection c = reused.getDataSource().getConnection(); Statement s = c.createStatement()) {
+                assertEquals(Collections.singletonList("1"), query(s, "SELECT nextval('reused_seq')"));
+            }
+            leases.remove(reused);
+            reused.close();
+
+            PreparedDatabase observer = provider.leaseDatabase();
+            leases.add(observer);
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (databaseExists(observer.getDataSource(), dbName)) {
+                assertTrue(System.nanoTime() < deadline, "the database with an advanced sequence has not been dropped");
+                Thread.sleep(10);
+            }
+            assertEquals(1, provider.getReusedDatabaseCount());
+        } finally {
+            leases.forEach(PreparedDatabase::close);
+        }
+    }
+
+    /**
+     * Waits until the released database is put back into the queue, then leases databases until it is handed out again,
+     * all of them are added to the leases.
+     */
+    private static PreparedDatabase leaseDatabase(PreparedDbProvider provider, String dbName, List<PreparedDatabase> leases) throws Exception
+    {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (provider.getReusedDatabaseCount() == 0) {
+            assertTrue(System.nanoTime() < deadline, "the released database " + dbName + " has not been reused");
+            Thread.sleep(10);
+        }
+        for (int i = 0; i < 5; i++) {
+            PreparedDatabase database = provider.leaseDatabase();
+            leases.add(database);
+            if (database.getConnectionInfo().getDbName().equals(dbName)) {
+                return database;
+            }
+        }
+        throw new AssertionError("the released database " + dbName + " has not been reused");
+    }
+
+    private static List<String> query(Statement s, String sql) throws SQLException
+    {
+        List<String> result = new ArrayList<>();
+        try (ResultSet rs = s.executeQuery(sql)) {
+            while (rs.next()) {
+                result.add(rs.getString(1));
+            }
+        }
+        return result;
+    }
+
+    private static DatabasePreparer tablePreparer(String tableName)
+    {
+        return ds -> {
+            try (Connection c = ds.getConnection(); Statement s = c.createStatement()) {
+                s.execute("CREATE TABLE " + tableName + " (id int)");
+            }
+        };
+    }
+
+    private static List<String> listTables(DataSource ds) throws SQLException
+    {
+        List<String> tables = new ArrayList<>();
+        try (Connection c = ds.getConnection();
+             Statement s = c.createStatement();
+             ResultSet rs = s.executeQuery("SELECT tablename FROM pg_tables WHERE schemaname = 'public' ORDER BY tablename")) {
+            while (rs.next()) {
+                tables.add(rs.getString(1));
+            }
+        }
+        return tables;
+    }
+
+    private static boolean databaseExists(DataSource ds, String dbName) throws SQLException
+    {
+        try (Connection c = ds.getConnection();
+             PreparedStatement stmt = c.prepareStatement("SELECT 1 FROM pg_database WHERE datname = ?")) {
+            stmt.setString(1, dbName);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next();
+            }
+        }
+    }
+}
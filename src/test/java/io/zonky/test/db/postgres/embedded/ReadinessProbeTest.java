@@ -0,0 +1,58 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.zonky.test.db.postgres.embedded;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class ReadinessProbeTest
+{
+    @TempDir
+    public Path tf;
+
+    @Test
+    public void testProbe() throws Exception
+    {
+        try (EmbeddedPostgres pg = EmbeddedPostgres.builder().setDataDirectory(tf.resolve("data")).start()) {
+            assertEquals(ReadinessProbe.STATUS_READY, ReadinessProbe.readPidFileStatus(tf.resolve("data").toFile()));
+            assertTrue(ReadinessProbe.isAcceptingConnections(pg.getPort(), "postgres", "postgres", 500));
+            assertTrue(ReadinessProbe.isAcceptingConnections(pg.getPort(), "postgres", "nonexistent", 500));
+        }
+
+        int closedPort;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            closedPort = socket.getLocalPort();
+        }
+        assertFalse(ReadinessProbe.isAcceptingConnections(closedPort, "postgres", "postgres", 500));
+    }
+
+    @Test
+    public void testPidFileWithoutStatus() throws Exception
+    {
+        Files.write(tf.resolve("postmaster.pid"), "12345\n/data\n1700000000\n5432\n".getBytes());
+
+        assertNull(ReadinessProbe.readPidFileStatus(tf.toFile()));
+        assertTrue(ReadinessProbe.isPidFilePortWritten(tf.toFile()));
+        assertFalse(ReadinessProbe.isPidFilePortWritten(tf.resolve("missing").toFile()));
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.zonky.test.db.postgres.embedded;
+
+import static java.util.Collections.singletonList;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assumptions.assumeFalse;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.apache.commons.lang3.SystemUtils;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class SystemPostgresDirectoryResolverTest
+{
+    @TempDir
+    public Path tf;
+
+    private File searchDir;
+
+    @BeforeEach
+    public void setUp() throws IOException
+    {
+        assumeFalse(SystemUtils.IS_OS_WINDOWS);
+        searchDir = Files.createDirectories(tf.resolve("postgresql")).toFile();
+        fakeInstallation(searchDir.toPath().resolve("13"), "13.2");
+        fakeInstallation(searchDir.toPath().resolve("15"), "15.1");
+    }
+
+    @Test
+    public void testVersionRange()
+    {
+        assertEquals(new File(searchDir, "13"), resolver(13, 14, null).getPgDirectory("Linux", "x86_64"));
+        assertEquals(new File(searchDir, "15"), resolver(0, Integer.MAX_VALUE, null).getPgDirectory("Linux", "x86_64"));
+        assertNull(resolver(16, 17, null).getPgDirectory("Linux", "x86_64"));
+    }
+
+    @Test
+    public void testPath() throws IOException
+    {
+        Path installation = tf.resolve("opt");
+        fakeInstallation(installation, "16.3 (Debian 16.3-1)");
+        String path = String.join(File.pathSeparator, "/nonexistent/bin", installation.resolve("bin").toString());
+
+        assertEquals(installation.toFile(), resolver(16, 16, path).getPgDirectory("Linux", "x86_64"));
+    }
+
+    private SystemPostgresDirectoryResolver resolver(int min, int max, String path)
+    {
+        return new SystemPostgresDirectoryResolver(min, max, singletonList(searchDir), path);
+    }
+
+    private static void fakeInstallation(Path directory, String version) throws IOException
+    {
+        Path bin = Files.createDirectories(directory.resolve("bin"));
+        for (String command : Arrays.asList("initdb", "pg_ctl", "postgres")) {
+            Path script = bin.resolve(command);
+            String content = "#!/bin/sh\necho '" + command + " (PostgreSQL) " + version + "'\n";
+            Files.write(script, content.getBytes(StandardCharsets.UTF_8));
+            script.toFile().setExecutable(true);
+        }
+    }
+}
@@ -14,6 +14,8 @@
 package io.zonky.test.db.postgres.junit5;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
 
 import java.sql.Connection;
 import java.sql.ResultSet;
@@ -36,4 +38,12 @@ public class FlywayPreparerTest {
             assertEquals("bar", rs.getString(1));
         }
     }
+
+    @Test
+    public void testCacheKey() throws Exception {
+        String cacheKey = FlywayPreparer.forClasspathLocation("db/testing").getCacheKey();
+        assertNotNull(cacheKey);
+        assertEquals(cacheKey, FlywayPreparer.forClasspathLocation("db/testing").getCacheKey());
+        assertNull(FlywayPreparer.forClasspathLocation("db/missing").getCacheKey());
+    }
 }
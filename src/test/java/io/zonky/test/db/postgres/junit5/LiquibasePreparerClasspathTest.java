@@ -22,6 +22,8 @@ import java.sql.ResultSet;
 import java.sql.Statement;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
 
 public class LiquibasePreparerClasspathTest {
 
@@ -37,4 +39,13 @@ public class LiquibasePreparerClasspathTest {
             assertEquals("bar", rs.getString(1));
         }
     }
+
+    @Test
+    public void testCacheKey() throws Exception {
+        String cacheKey = LiquibasePreparer.forClasspathLocation("liqui/master.xml").getCacheKey();
+        assertNotNull(cacheKey);
+        assertEquals(cacheKey, LiquibasePreparer.forClasspathLocation("liqui/master.xml").getCacheKey());
+        assertNotNull(LiquibasePreparer.forClasspathLocation("liqui/master-test.xml").getCacheKey());
+        assertNull(LiquibasePreparer.forClasspathLocation("missing/master.xml").getCacheKey());
+    }
 }
@@ -16,13 +16,20 @@ package io.zonky.test.db.postgres.junit5;
 import io.zonky.test.db.postgres.embedded.LiquibasePreparer;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.RegisterExtension;
+import org.junit.jupiter.api.io.TempDir;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.Statement;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
 
 public class LiquibasePreparerFileTest {
 
@@ -38,4 +45,28 @@ public class LiquibasePreparerFileTest {
             assertEquals("bar", rs.getString(1));
         }
     }
+
+    @Test
+    public void testCacheKey(@TempDir Path dir) throws Exception {
+        assertNotNull(LiquibasePreparer.forFile(new File("src/test/resources/liqui/master.xml")).getCacheKey());
+
+        writeChangeLog(dir.resolve("schema/inner.xml"), "<changeSet id=\"inner\" author=\"test\"><sql>SELECT 1</sql></changeSet>");
+        writeChangeLog(dir.resolve("shared/outer.xml"), "<changeSet id=\"outer\" author=\"test\"><sql>SELECT 1</sql></changeSet>");
+        writeChangeLog(dir.resolve("schema/master.xml"), "<include file=\"inner.xml\" relativeToChangelogFile=\"true\"/>");
+        writeChangeLog(dir.resolve("schema/master-shared.xml"), "<include file=\"inner.xml\" relativeToChangelogFile=\"true\"/>"
+                + "<include file=\"../shared/outer.xml\" relativeToChangelogFile=\"true\"/>");
+
+        assertNotNull(LiquibasePreparer.forFile(dir.resolve("schema/master.xml").toFile()).getCacheKey());
+        // the included file outside of the directory would not be covered by the key
+        assertNull(LiquibasePreparer.forFile(dir.resolve("schema/master-shared.xml").toFile()).getCacheKey());
+    }
+
+    private static void writeChangeLog(Path file, String content) throws IOException {
+        Files.createDirectories(file.getParent());
+        Files.write(file, ("<databaseChangeLog xmlns=\"http://www.liquibase.org/xml/ns/dbchangelog\""
+                + " xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\""
+                + " xsi:schemaLocation=\"http://www.liquibase.org/xml/ns/dbchangelog http://www.liquibase.org/xml/ns/dbchangelog/dbchangelog-latest.xsd\">"
+                + content + "</databaseChangeLog>")
+                .getBytes(StandardCharsets.UTF_8));
+    }
 }